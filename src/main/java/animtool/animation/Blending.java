@@ -0,0 +1,114 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.animation;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritablePixelFormat;
+
+import java.nio.IntBuffer;
+
+/**
+ * Pixel and bookkeeping helpers shared by {@link LayerCompositor} and {@link OnionSkin}, which both blend images of
+ * several frames and keep the results until one of those frames changes.
+ */
+final class Blending {
+
+    static final WritablePixelFormat<IntBuffer> FORMAT = PixelFormat.getIntArgbPreInstance();
+
+
+    private Blending() {
+    }
+
+    /**
+     * Source-over blend of two premultiplied ARGB pixels.
+     */
+    static int over(int src, int dst) {
+        int sa = src >>> 24;
+        if (sa == 255) return src;
+        if (sa == 0) return dst;
+
+        int inv = 255 - sa;
+        int a = sa + ((dst >>> 24) * inv + 127) / 255;
+        int r = ((src >> 16) & 0xff) + (((dst >> 16) & 0xff) * inv + 127) / 255;
+        int g = ((src >> 8) & 0xff) + (((dst >> 8) & 0xff) * inv + 127) / 255;
+        int b = (src & 0xff) + ((dst & 0xff) * inv + 127) / 255;
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Loads the decoded images of contributing frames, then records their versions. Loading publishes a new version,
+     * so versions taken before it would make every result stale as soon as it is made.
+     *
+     * @param sources  Contributing frames, null entries are skipped.
+     * @param from     First index to load.
+     * @param versions Receives the version of each loaded frame.
+     * @param keep     True to keep images decoded here in their frames, see {@link Frame#decodeNow(boolean)}.
+     * @return The images, null where there is no frame or it failed to decode.
+     */
+    static Image[] load(Frame[] sources, int from, long[] versions, boolean keep) {
+        Image[] images = new Image[sources.length];
+        for (int i = from; i < sources.length; i++) {
+            if (sources[i] == null) continue;
+
+            Image img = sources[i].decodeNow(keep);
+            images[i] = img.isError() ? null : img;
+        }
+        for (int i = from; i < sources.length; i++) {
+            if (sources[i] != null) versions[i] = sources[i].getVersion();
+        }
+        return images;
+    }
+
+    /**
+     * The frames an image was made from and their versions at the time.
+     */
+    static class Stamp {
+
+        final Frame[] sources;
+        final long[] versions;
+
+
+        Stamp(Frame[] sources, long[] versions) {
+            this.sources = sources;
+            this.versions = versions;
+        }
+
+        /**
+         * @param current The frames that contribute now.
+         * @return True if the same frames contribute and none has changed since.
+         */
+        boolean isValid(Frame[] current) {
+            if (current.length != sources.length) return false;
+            for (int i = 0; i < sources.length; i++) {
+                if (current[i] != sources[i]) return false;
+                if (current[i] != null && current[i].getVersion() != versions[i]) return false;
+            }
+            return true;
+        }
+
+    }
+
+}
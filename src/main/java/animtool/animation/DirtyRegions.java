@@ -0,0 +1,122 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.animation;
+
+import javafx.geometry.Rectangle2D;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the regions that differ between two versions of an image.
+ */
+public final class DirtyRegions {
+
+    /**
+     * Images are compared in square blocks of this size.
+     */
+    private static final int BLOCK = 32;
+    /**
+     * More separate regions than this are merged into their bounding box.
+     */
+    private static final int MAX_REGIONS = 32;
+
+
+    private DirtyRegions() {
+    }
+
+    /**
+     * Compares two images of the same size block by block. Dirty blocks are merged into runs along each block row,
+     * and runs with the same extent in consecutive block rows are merged into one rectangle.
+     *
+     * @param before Pixels of the old image.
+     * @param after  Pixels of the new image.
+     * @param width  Image width.
+     * @param height Image height.
+     * @return Rectangles covering every pixel that changed, empty if none did.
+     */
+    public static List<Rectangle2D> compute(int[] before, int[] after, int width, int height) {
+        int columns = (width + BLOCK - 1) / BLOCK;
+        List<int[]> open = new ArrayList<>(); // {x0, x1, y0, y1} in blocks, still extendable downwards
+        List<int[]> closed = new ArrayList<>();
+
+        boolean[] dirty = new boolean[columns];
+        for (int by = 0; by * BLOCK < height; by++) {
+            Arrays.fill(dirty, false);
+            int y1 = Math.min(height, (by + 1) * BLOCK);
+            for (int y = by * BLOCK; y < y1; y++) {
+                int row = y * width;
+                for (int bx = 0; bx < columns; bx++) {
+                    if (dirty[bx]) continue;
+                    int from = row + bx * BLOCK, to = row + Math.min(width, (bx + 1) * BLOCK);
+                    if (Arrays.mismatch(before, from, to, after, from, to) >= 0) dirty[bx] = true;
+                }
+            }
+
+            List<int[]> next = new ArrayList<>();
+            for (int bx = 0; bx < columns; bx++) {
+                if (!dirty[bx]) continue;
+                int start = bx;
+                while (bx + 1 < columns && dirty[bx + 1]) bx++;
+
+                int[] run = null;
+                for (int[] r : open) {
+                    if (r[0] == start && r[1] == bx + 1) run = r;
+                }
+                if (run != null) {
+                    open.remove(run);
+                    run[3] = by + 1;
+                } else {
+                    run = new int[]{start, bx + 1, by, by + 1};
+                }
+                next.add(run);
+            }
+
+            closed.addAll(open);
+            open = next;
+        }
+        closed.addAll(open);
+
+        List<Rectangle2D> regions = new ArrayList<>();
+        if (closed.size() > MAX_REGIONS) {
+            int x0 = Integer.MAX_VALUE, x1 = 0, y0 = Integer.MAX_VALUE, y1 = 0;
+            for (int[] r : closed) {
+                x0 = Math.min(x0, r[0]);
+                x1 = Math.max(x1, r[1]);
+                y0 = Math.min(y0, r[2]);
+                y1 = Math.max(y1, r[3]);
+            }
+            closed = List.of(new int[]{x0, x1, y0, y1});
+        }
+
+        for (int[] r : closed) {
+            int x = r[0] * BLOCK, y = r[2] * BLOCK;
+            regions.add(new Rectangle2D(x, y, Math.min(width, r[1] * BLOCK) - x, Math.min(height, r[3] * BLOCK) - y));
+        }
+        return regions;
+    }
+
+}
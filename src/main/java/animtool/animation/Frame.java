@@ -26,24 +26,74 @@ package animtool.animation;
 
 
 import animtool.gui.Main;
+import animtool.service.DecodePool;
+import animtool.service.ImageCache;
+import animtool.service.ThumbnailAtlas;
+import animtool.service.ThumbnailLoader;
+import javafx.application.Platform;
 import javafx.beans.property.*;
-import javafx.scene.image.Image;
+import javafx.beans.value.ChangeListener;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.image.*;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 
 /**
  * A single frame of an animation loaded from file.
+ * <p>
+ * The image side of a frame (the image, the fingerprint of its content, its version and any load in progress) is kept
+ * in one immutable {@link State} that is replaced with compare-and-set on every change. Readers on any thread see a
+ * consistent state without locking, and the FX thread never waits on a watch or decode thread. The delay is owned by
+ * the FX thread like the rest of the project model.
+ * <p>
+ * The delay is a plain field. An observable wrapper for it only exists while a view listens to it, so projects with
+ * tens of thousands of frames only pay for the few frames currently shown in cells. The project-wide columns of delays,
+ * file names, sizes, modification times and fingerprints live in {@link ProjectSnapshot}, which is what bulk readers
+ * should scan. The image state here and the {@link ImageCache} remain the source of the file columns, since they change
+ * with the image on background threads, and the frame tells its project when they do.
  */
 public class Frame implements Comparable<Frame> {
 
     public static final int THUMBNAIL_SIZE = 100;
 
+    private static final WritablePixelFormat<IntBuffer> FORMAT = PixelFormat.getIntArgbPreInstance();
+
+    /**
+     * Number of full size images currently being decoded in the background, across all frames.
+     */
+    private static final AtomicInteger pendingLoads = new AtomicInteger();
+
     private final File file;
     private final DoubleProperty defaultDelay;
 
-    private final ObjectProperty<Image> image = new SimpleObjectProperty<>();
-    private final ObjectProperty<Image> thumbnail = new SimpleObjectProperty<>();
-    private final DoubleProperty delay = new SimpleDoubleProperty(-1);
+    private final AtomicReference<State> state = new AtomicReference<>(State.EMPTY);
+    /**
+     * Incremented for every patch submitted, so only the latest of several patches in flight is applied.
+     */
+    private final AtomicLong patchGeneration = new AtomicLong();
+    /**
+     * Lets go of this frame's image when its cache entry is evicted. Referenced only weakly by the cache.
+     */
+    private final ImageCache.Holder holder = this::evicted;
+    private volatile double delay = -1;
+    private DoubleProperty delayProperty = null;
+    private int delayListenerCount = 0;
+    /**
+     * The project state listing this frame, told when its delay or file columns change. Frames need no listener
+     * objects of their own.
+     */
+    private volatile ProjectState owner = null;
 
 
     public Frame(File file, DoubleProperty defaultDelay) {
@@ -56,23 +106,410 @@ public class Frame implements Comparable<Frame> {
      *
      * @return This frame's image.
      */
-    public synchronized Image getImage() {
-        if (image.get() == null) {
-            loadImage();
+    public Image getImage() {
+        Image img = state.get().image;
+        return img != null ? img : load(true);
+    }
+
+    /**
+     * Loads this frame's image again, from the cache if the file is unchanged since it was cached.
+     *
+     * @return The new image.
+     */
+    public Image loadImage() {
+        return load(false);
+    }
+
+    /**
+     * @param onlyIfEmpty True to keep an image another thread published in the meantime.
+     */
+    private Image load(boolean onlyIfEmpty) {
+        // Warm entry from this or a previously closed editor
+        ImageCache.Entry cached = ImageCache.get().get(file);
+        if (cached != null) {
+            State s = state.updateAndGet(cur -> cur.image == cached.getImage() || (onlyIfEmpty && cur.image != null) ? cur : cur.with(cached.getImage(), cached.getFingerprint(), null));
+            if (s.image == cached.getImage()) {
+                cached.hold(holder);
+                fileChanged();
+            }
+            return s.image;
+        }
+
+        // Stat before decoding starts so the background fingerprint can verify it hashed the same content
+        final long size = file.length(), modified = file.lastModified();
+
+        Image img = decodeImage(null, size, modified, onlyIfEmpty);
+        if (img == null) return state.get().image;
+
+        fingerprintLater(img, size, modified);
+        return img;
+    }
+
+    /**
+     * Fingerprints the file in the background and attaches the fingerprint to an image if it is still current.
+     *
+     * @param img      Image decoded from the file.
+     * @param size     File size before decoding.
+     * @param modified File modification time before decoding.
+     */
+    private void fingerprintLater(Image img, long size, long modified) {
+        DecodePool.submit(() -> {
+            ContentFingerprint fp = fingerprint(size, modified);
+            if (fp == null) return;
+
+            ImageCache.Entry entry = ImageCache.get().get(file);
+            if (entry != null && entry.getImage() == img) entry.setFingerprint(fp);
+            if (state.updateAndGet(cur -> cur.image == img ? cur.withFingerprint(fp) : cur).image == img) fileChanged();
+        });
+    }
+
+    /**
+     * Fingerprints the file on the calling thread.
+     *
+     * @param size     File size the fingerprint has to match.
+     * @param modified File modification time that must not have changed while hashing.
+     * @return The fingerprint, or null if the file changed or couldn't be read.
+     */
+    private ContentFingerprint fingerprint(long size, long modified) {
+        try {
+            ContentFingerprint fp = ContentFingerprint.of(file);
+            if (fp.getSize() != size || file.length() != size || file.lastModified() != modified) return null;
+            return fp;
+        } catch (IOException e) {
+            Main.log.log(Level.FINE, "Unable to fingerprint frame: " + file.getAbsolutePath(), e);
+            return null;
         }
+    }
+
+    /**
+     * Gets this frame's fully decoded image, decoding the file on the calling thread if necessary. Never waits on the FX
+     * thread, so it is safe to call from background threads that need pixels now.
+     *
+     * @param keep True to publish an image decoded here in this frame and the cache, replacing a background load still
+     *             in progress. False to only return it, so bulk work like exports doesn't keep every image it touches.
+     * @return The image, possibly in an error state.
+     */
+    public Image decodeNow(boolean keep) {
+        Image img = peekImage(keep);
+        if (img != null) return img;
+
+        long size = file.length(), modified = file.lastModified();
+        Image decoded = new Image(file.toURI().toString());
+        if (!keep || decoded.isError()) return decoded;
 
-        return image.get();
+        State s = state.get();
+        if (isDecoded(s.image)) return s.image;
+        if (!state.compareAndSet(s, s.with(decoded, null, null))) return decoded;
+
+        // The background load this replaces is no longer needed
+        if (s.image != null && s.loadFinished != null) {
+            s.image.cancel();
+            s.loadFinished.run();
+            ImageCache.get().remove(file, s.image);
+        }
+        cache(decoded, size, modified, null);
+        fingerprintLater(decoded, size, modified);
+        return decoded;
     }
 
-    public synchronized Image loadImage() {
+    /**
+     * Starts decoding the file in the background and publishes the still loading image.
+     *
+     * @param onlyIfEmpty True to give up if another thread published an image first.
+     * @return The image, or null if another thread won.
+     */
+    private Image decodeImage(ContentFingerprint fp, long size, long modified, boolean onlyIfEmpty) {
         Image img = new Image(file.toURI().toString(), true);
-        Main.log.info("Loading image: " + file.getAbsolutePath());
+        Runnable finish = trackPendingLoad(img);
 
-        image.set(img);
+        State s = state.updateAndGet(cur -> onlyIfEmpty && cur.image != null ? cur : cur.with(img, fp, finish));
+        if (s.image != img) {
+            img.cancel();
+            finish.run();
+            return null;
+        }
 
+        Main.log.info("Loading image: " + file.getAbsolutePath());
+        cache(img, size, modified, fp);
         return img;
     }
 
+    /**
+     * Caches an image this frame now uses, and registers to let go of it when the cache evicts it.
+     */
+    private void cache(Image img, long size, long modified, ContentFingerprint fp) {
+        ImageCache.Entry entry = ImageCache.get().put(file, img, size, modified);
+        entry.setFingerprint(fp);
+        entry.hold(holder);
+        fileChanged();
+    }
+
+    /**
+     * Drops the image once the cache evicted it, keeping the memory budget. The next {@link #getImage()} decodes it
+     * again.
+     */
+    private void evicted(Image img) {
+        state.updateAndGet(cur -> cur.image == img && isDecoded(img) ? cur.withoutImage() : cur);
+    }
+
+    private static Runnable trackPendingLoad(Image img) {
+        pendingLoads.incrementAndGet();
+        AtomicBoolean done = new AtomicBoolean();
+        Runnable finish = () -> {
+            if (done.compareAndSet(false, true)) pendingLoads.decrementAndGet();
+        };
+
+        img.progressProperty().addListener((observable, oldValue, newValue) -> {
+            if (newValue.doubleValue() >= 1) finish.run();
+        });
+        img.errorProperty().addListener((observable, oldValue, newValue) -> {
+            if (newValue) finish.run();
+        });
+        if (img.getProgress() >= 1 || img.isError()) finish.run();
+
+        return finish;
+    }
+
+    /**
+     * @return True if this frame has an image, decoded or still loading.
+     */
+    public boolean isLoaded() {
+        return state.get().image != null;
+    }
+
+    /**
+     * Lets go of this frame's full size image so it can be collected once the cache evicts it too. Frames also let go
+     * of their images by themselves when the cache evicts them. Images still
+     * loading are kept. The next {@link #getImage()} loads it again, from the cache if it is still there.
+     */
+    public void unloadImage() {
+        state.updateAndGet(cur -> isDecoded(cur.image) ? cur.withoutImage() : cur);
+    }
+
+    /**
+     * Gets this frame's image only if it is already fully decoded, either in this frame or in the cache. Never starts
+     * a load.
+     *
+     * @return The decoded image, or null.
+     */
+    public Image peekImage() {
+        return peekImage(true);
+    }
+
+    /**
+     * @param keep True to adopt an image found in the cache as this frame's image.
+     */
+    private Image peekImage(boolean keep) {
+        State s = state.get();
+        if (isDecoded(s.image)) return s.image;
+
+        ImageCache.Entry cached = ImageCache.get().get(file);
+        if (cached != null && isDecoded(cached.getImage())) {
+            if (keep && state.compareAndSet(s, s.with(cached.getImage(), cached.getFingerprint(), null))) {
+                cached.hold(holder);
+                fileChanged();
+            }
+            return cached.getImage();
+        }
+
+        return null;
+    }
+
+    /**
+     * Cancels a full size decode this frame started that is still in progress. The next {@link #getImage()} starts
+     * over.
+     *
+     * @return True if a decode was cancelled.
+     */
+    public boolean cancelLoad() {
+        State s = state.get();
+        Image img = s.image;
+        if (s.loadFinished == null || isDecoded(img) || img.isError()) return false;
+        if (!state.compareAndSet(s, s.with(null, null, null))) return false;
+
+        img.cancel();
+        s.loadFinished.run();
+        ImageCache.get().remove(file, img);
+        Main.log.fine("Cancelled loading image: " + file.getAbsolutePath());
+        return true;
+    }
+
+    private static boolean isDecoded(Image img) {
+        return img != null && img.getProgress() >= 1 && !img.isError();
+    }
+
+    /**
+     * @return Number of full size images currently being decoded in the background, across all frames.
+     */
+    public static int getPendingLoads() {
+        return pendingLoads.get();
+    }
+
+    /**
+     * Reloads this frame's image only if the file's content differs from the content the current image was decoded
+     * from. Files that were merely touched or rewritten with identical bytes are hashed but not decoded again.
+     *
+     * @return True if the image was reloaded.
+     */
+    public boolean reloadIfChanged() {
+        State s = state.get();
+        ContentFingerprint last = s.fingerprint;
+
+        // A different size is always a change and doesn't need to be hashed here
+        if (last != null && last.getSize() == file.length()) {
+            try {
+                long modified = file.lastModified();
+                ContentFingerprint current = ContentFingerprint.of(file);
+                if (current.equals(last)) {
+                    Main.log.fine("Skipping reload of unchanged image: " + file.getAbsolutePath());
+
+                    // Keep the shared cache entry valid for the new modification time
+                    if (s.image != null) cache(s.image, current.getSize(), modified, current);
+                    return false;
+                }
+
+                // Another editor showing the same file may have decoded the new content already
+                ImageCache.Entry cached = ImageCache.get().get(file);
+                if (cached != null && current.equals(cached.getFingerprint())) {
+                    state.updateAndGet(cur -> cur.with(cached.getImage(), current, null));
+                    cached.hold(holder);
+                    fileChanged();
+                    return true;
+                }
+
+                // Hashed before decoding, so the decode will see this content or newer
+                if (!patchImage(current, current.getSize(), modified)) {
+                    decodeImage(current, current.getSize(), modified, false);
+                    dropThumbnail();
+                }
+                return true;
+            } catch (IOException e) {
+                Main.log.log(Level.WARNING, "Unable to fingerprint frame: " + file.getAbsolutePath(), e);
+            }
+        }
+
+        long size = file.length(), modified = file.lastModified();
+        if (!patchImage(null, size, modified)) {
+            loadImage();
+            dropThumbnail();
+        }
+        return true;
+    }
+
+    /**
+     * Drops this frame's packed thumbnail after its file changed without a patch, so it is decoded again when next
+     * shown. The atlas doesn't check files itself.
+     */
+    private void dropThumbnail() {
+        Platform.runLater(() -> ThumbnailAtlas.get().remove(file));
+    }
+
+    /**
+     * Decodes the file on the {@link DecodePool} and writes only the regions that differ into the current image, so the
+     * preview and thumbnail upload just those regions instead of a whole new texture. The first patch of a frame moves
+     * its image into a {@link PixelBuffer}, which uploads it whole once like any reload. Later patches update that
+     * buffer in place with their dirty regions. Falls back to a full reload if the new image has a different size.
+     * <p>
+     * Patches decode in parallel, so each one takes a generation when it is submitted and only the latest is applied.
+     * Regions are found by comparing against a copy of the pixels the last patch wrote, never against the live buffer,
+     * which only the FX thread touches.
+     *
+     * @param fp       Fingerprint of the new content, or null to compute it while decoding.
+     * @param size     File size before decoding.
+     * @param modified File modification time before decoding.
+     * @return False if the current image can't be patched because it isn't loaded yet, in which case nothing was
+     * scheduled.
+     */
+    private boolean patchImage(ContentFingerprint fp, long size, long modified) {
+        Image old = state.get().image;
+        if (old == null || old.getProgress() < 1 || old.isError() || old.getPixelReader() == null) return false;
+
+        long generation = patchGeneration.incrementAndGet();
+        DecodePool.submit(() -> {
+            if (generation != patchGeneration.get()) return;
+
+            // Hashed before decoding, so an unchanged modification time means both saw the same content
+            ContentFingerprint hash = fp != null ? fp : fingerprint(size, modified);
+
+            int w = (int) old.getWidth(), h = (int) old.getHeight();
+            Image decoded = new Image(file.toURI().toString());
+            if (decoded.isError() || (int) decoded.getWidth() != w || (int) decoded.getHeight() != h) {
+                if (state.get().image == old) decodeImage(hash, size, modified, false);
+                dropThumbnail();
+                return;
+            }
+
+            State s = state.get();
+            if (s.image != old) return;
+            int[] before = s.patchPixels;
+            if (before == null) {
+                // Not patched yet, so the image is still the immutable one the frame decoded
+                before = new int[w * h];
+                old.getPixelReader().getPixels(0, 0, w, h, FORMAT, before, 0, w);
+            }
+            int[] after = new int[w * h];
+            decoded.getPixelReader().getPixels(0, 0, w, h, FORMAT, after, 0, w);
+            List<Rectangle2D> dirty = DirtyRegions.compute(before, after, w, h);
+
+            int[] base = s.patchPixels;
+            Platform.runLater(() -> applyPatch(generation, old, base, after, w, h, dirty, hash, size, modified));
+        });
+        return true;
+    }
+
+    /**
+     * Writes decoded pixels into the current image on the FX application thread, unless it was replaced or a newer
+     * patch was submitted meanwhile.
+     *
+     * @param base Pixels the dirty regions were computed against, null for the frame's first patch.
+     */
+    private void applyPatch(long generation, Image old, int[] base, int[] after, int w, int h, List<Rectangle2D> dirty, ContentFingerprint fp, long size, long modified) {
+        if (generation != patchGeneration.get()) return;
+        // Replaced while decoding, the newer image wins
+        State s = state.get();
+        if (s.image != old) return;
+
+        // Another patch landed after the regions were computed, so they may miss some of its changes
+        if (s.patchPixels != base) dirty = List.of(new Rectangle2D(0, 0, w, h));
+
+        Image img;
+        PixelBuffer<IntBuffer> pb = s.patchBuffer;
+        if (pb != null) {
+            // Pixels first, so nobody sees the new version with the old pixels
+            for (Rectangle2D r : dirty) {
+                pb.updateBuffer(b -> {
+                    IntBuffer pixels = b.getBuffer();
+                    int x0 = (int) r.getMinX(), rw = (int) r.getWidth();
+                    for (int y = (int) r.getMinY(); y < (int) r.getMaxY(); y++) {
+                        pixels.put(y * w + x0, after, y * w + x0, rw);
+                    }
+                    return r;
+                });
+            }
+            img = old;
+        } else {
+            IntBuffer pixels = ByteBuffer.allocateDirect(w * h * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+            pixels.put(after);
+            pb = new PixelBuffer<>(w, h, pixels, FORMAT);
+            img = new WritableImage(pb);
+        }
+
+        PixelBuffer<IntBuffer> buffer = pb;
+        State next = state.updateAndGet(cur -> cur.image == old ? cur.patched(img, fp, buffer, after) : cur);
+        if (next.image != img) return;
+
+        cache(next.image, size, modified, fp);
+        ThumbnailAtlas.get().patch(file, after, w, h, dirty, size, modified);
+        Main.log.info("Patched " + dirty.size() + " region(s) of image: " + file.getAbsolutePath());
+    }
+
+    /**
+     * @return Number of times this frame's image has been (re)loaded. Changes whenever the image is replaced.
+     */
+    public long getVersion() {
+        return state.get().version;
+    }
+
     /**
      * @return This frame's file.
      */
@@ -80,22 +517,45 @@ public class Frame implements Comparable<Frame> {
         return file;
     }
 
-    public synchronized Image getThumbnail() {
-        Image thumb = thumbnail.get();
-        if (thumb == null) {
-            thumb = loadThumbnail();
+    /**
+     * Gets this frame's packed thumbnail without starting a decode. Must be called on the FX application thread.
+     *
+     * @return The thumbnail's atlas slot, or null if it isn't packed.
+     */
+    public ThumbnailAtlas.Slot peekThumbnail() {
+        return ThumbnailAtlas.get().get(file);
+    }
+
+    /**
+     * Gets this frame's thumbnail without blocking. If the thumbnail isn't packed in the {@link ThumbnailAtlas} yet, a
+     * decode is queued on the {@link ThumbnailLoader}. Must be called on the FX application thread.
+     *
+     * @param callback Receives the thumbnail's slot on the FX application thread, or null if it couldn't be decoded.
+     *                 Called right away if it is already packed.
+     * @return Handle to cancel the queued decode with, or null if the callback was already called.
+     */
+    public ThumbnailLoader.Request<ThumbnailAtlas.Decoded> requestThumbnail(Consumer<ThumbnailAtlas.Slot> callback) {
+        ThumbnailAtlas.Slot slot = peekThumbnail();
+        if (slot != null) {
+            callback.accept(slot);
+            return null;
         }
 
-        return thumb;
+        return ThumbnailLoader.submit(this::decodeThumbnail, decoded -> callback.accept(ThumbnailAtlas.get().put(decoded)));
     }
 
-    private synchronized Image loadThumbnail() {
-        Image thumb = new Image(file.toURI().toString(), THUMBNAIL_SIZE, THUMBNAIL_SIZE, true, true, true);
-        thumbnail.set(thumb);
-        return thumb;
+    /**
+     * Decodes the thumbnail on the calling thread.
+     */
+    private ThumbnailAtlas.Decoded decodeThumbnail() {
+        long size = file.length(), modified = file.lastModified();
+        Image thumb = new Image(file.toURI().toString(), THUMBNAIL_SIZE, THUMBNAIL_SIZE, true, true, false);
+        if (thumb.isError()) Main.log.log(Level.WARNING, "Unable to load thumbnail: " + file.getAbsolutePath(), thumb.getException());
+
+        return new ThumbnailAtlas.Decoded(file, thumb, size, modified);
     }
 
-    public synchronized double getDefaultDelay() {
+    public double getDefaultDelay() {
         return defaultDelay.get();
     }
 
@@ -103,22 +563,76 @@ public class Frame implements Comparable<Frame> {
         return defaultDelay;
     }
 
-    public synchronized double getDelay() {
-        return delay.get();
+    public double getDelay() {
+        return delay;
     }
 
-    public synchronized void setDelay(double delay) {
-        this.delay.set(delay);
+    /**
+     * Sets this frame's own delay. Delays are owned by the FX application thread, other threads should read them from a
+     * {@link ProjectSnapshot}.
+     *
+     * @param delay Delay in milliseconds, or a value below 1 to use the default delay.
+     */
+    public void setDelay(double delay) {
+        if (this.delay == delay) return;
+
+        this.delay = delay;
+        ProjectState o = owner;
+        if (o != null) o.delayChanged(this);
+        if (delayProperty != null) delayProperty.set(delay);
     }
 
-    public synchronized double getComputedDelay() {
+    public double getComputedDelay() {
         double d = getDelay();
         if (d <= 0) d = getDefaultDelay();
         return d;
     }
 
-    public DoubleProperty delayProperty() {
-        return delay;
+    /**
+     * Listens to changes of this frame's own delay. A change listener, since nothing else reads the wrapper and an
+     * invalidation listener would only fire once. Must be called on the FX application thread.
+     *
+     * @param listener Listener to add.
+     */
+    public void addDelayListener(ChangeListener<? super Number> listener) {
+        if (delayProperty == null) delayProperty = new SimpleDoubleProperty(this, "delay", delay);
+        delayProperty.addListener(listener);
+        delayListenerCount++;
+    }
+
+    /**
+     * Stops listening to changes of this frame's delay. The observable wrapper is dropped with its last listener.
+     *
+     * @param listener Listener to remove.
+     */
+    public void removeDelayListener(ChangeListener<? super Number> listener) {
+        if (delayProperty == null) return;
+
+        delayProperty.removeListener(listener);
+        if (--delayListenerCount <= 0) {
+            delayProperty = null;
+            delayListenerCount = 0;
+        }
+    }
+
+    void setOwner(ProjectState owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Tells the owning project state that the file size, modification time or fingerprint may have changed, so its
+     * snapshot columns are refreshed. Safe to call from any thread.
+     */
+    private void fileChanged() {
+        ProjectState o = owner;
+        if (o != null) o.fileChanged(this);
+    }
+
+    /**
+     * @return Fingerprint of the content the current image was decoded from, or null if not known.
+     */
+    public ContentFingerprint getFingerprint() {
+        return state.get().fingerprint;
     }
 
     @Override
@@ -140,4 +654,78 @@ public class Frame implements Comparable<Frame> {
         }
     }
 
+    /**
+     * Immutable image state of a frame. Every change publishes a new instance.
+     */
+    private static final class State {
+
+        static final State EMPTY = new State(null, null, 0, null, null, null);
+
+        /**
+         * Current image, possibly still loading, or null.
+         */
+        final Image image;
+        /**
+         * Fingerprint of the content the image was decoded from, or null if not (yet) known.
+         */
+        final ContentFingerprint fingerprint;
+        /**
+         * Number of times the image has been replaced or patched.
+         */
+        final long version;
+        /**
+         * Marks the load of the image finished, set only if this frame started that load.
+         */
+        final Runnable loadFinished;
+        /**
+         * Pixel buffer backing the image once it has been patched in place.
+         */
+        final PixelBuffer<IntBuffer> patchBuffer;
+        /**
+         * Copy of the pixels in the patch buffer, never modified, so the next patch can be diffed off the FX thread.
+         */
+        final int[] patchPixels;
+
+
+        State(Image image, ContentFingerprint fingerprint, long version, Runnable loadFinished, PixelBuffer<IntBuffer> patchBuffer, int[] patchPixels) {
+            this.image = image;
+            this.fingerprint = fingerprint;
+            this.version = version;
+            this.loadFinished = loadFinished;
+            this.patchBuffer = patchBuffer;
+            this.patchPixels = patchPixels;
+        }
+
+        /**
+         * @return A new version with a different image, or the same image changed. A load in progress and a patch buffer
+         * carry over only if the image stays the same.
+         */
+        State with(Image image, ContentFingerprint fingerprint, Runnable loadFinished) {
+            boolean same = image == this.image;
+            return new State(image, fingerprint, version + 1,
+                    loadFinished != null || !same ? loadFinished : this.loadFinished,
+                    same ? patchBuffer : null,
+                    same ? patchPixels : null);
+        }
+
+        /**
+         * @return A new version of an image backed by a patch buffer now holding the given pixels.
+         */
+        State patched(Image image, ContentFingerprint fingerprint, PixelBuffer<IntBuffer> patchBuffer, int[] patchPixels) {
+            return new State(image, fingerprint, version + 1, image == this.image ? loadFinished : null, patchBuffer, patchPixels);
+        }
+
+        State withFingerprint(ContentFingerprint fingerprint) {
+            return new State(image, fingerprint, version, loadFinished, patchBuffer, patchPixels);
+        }
+
+        /**
+         * @return The same version without an image. Reloading it counts as a new version.
+         */
+        State withoutImage() {
+            return new State(null, fingerprint, version, null, null, null);
+        }
+
+    }
+
 }
@@ -0,0 +1,123 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.animation;
+
+import animtool.gui.Main;
+import javafx.beans.property.DoubleProperty;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An additional folder of frames that is composited above or below a project's own frames.
+ * <p>
+ * Layer frames are matched to project frames by index. A layer with fewer frames holds its last frame, so a single
+ * background image is shown under every frame of the animation.
+ */
+public class Layer {
+
+    private final File folder;
+    private final DoubleProperty defaultDelay;
+    private final List<Frame> frames = new ArrayList<>();
+
+    private final FrameComparator frameComparator = new FrameComparator();
+
+
+    public Layer(File folder, DoubleProperty defaultDelay) {
+        this.folder = folder;
+        this.defaultDelay = defaultDelay;
+    }
+
+    /**
+     * @return Folder this layer's frames are loaded from.
+     */
+    public File getFolder() {
+        return folder;
+    }
+
+    /**
+     * Loads all frames from this layer's folder, replacing any previously loaded frames. A folder that no longer exists
+     * or can't be listed leaves the layer empty.
+     */
+    public synchronized void load() {
+        frames.clear();
+        File[] images = folder.listFiles(Main.imageFilter);
+        if (images == null) {
+            Main.log.warning("Unable to list layer folder: " + folder.getAbsolutePath());
+            return;
+        }
+        for (File file : images) {
+            frames.add(new Frame(file, defaultDelay));
+        }
+        frames.sort(frameComparator);
+    }
+
+    /**
+     * @return Immutable snapshot of this layer's frames in order.
+     */
+    public synchronized List<Frame> getFrames() {
+        return List.copyOf(frames);
+    }
+
+    /**
+     * @param file Absolute path of the file that was created.
+     * @return True if the file was added as a frame.
+     */
+    public synchronized boolean fileCreated(File file) {
+        if (!Main.imageFilter.accept(file.getParentFile(), file.getName())) return false;
+
+        Frame frame = new Frame(file, defaultDelay);
+        if (frames.contains(frame)) return false;
+
+        frames.add(frame);
+        frames.sort(frameComparator);
+        return true;
+    }
+
+    /**
+     * @param file Absolute path of the file that was deleted.
+     * @return True if a frame was removed.
+     */
+    public synchronized boolean fileDeleted(File file) {
+        return frames.remove(new Frame(file, defaultDelay));
+    }
+
+    /**
+     * @param file Absolute path of the file that was modified.
+     * @return True if a frame's image was reloaded.
+     */
+    public boolean fileModified(File file) {
+        Frame frame;
+        synchronized (this) {
+            int i = frames.indexOf(new Frame(file, defaultDelay));
+            if (i < 0) return false;
+            frame = frames.get(i);
+        }
+
+        return frame.reloadIfChanged();
+    }
+
+}
@@ -0,0 +1,338 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.animation;
+
+import animtool.gui.Main;
+import animtool.service.DecodePool;
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.scene.image.WritableImage;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+
+/**
+ * Composites ordered layers of frames into single images and caches the results.
+ * <p>
+ * Each cached composite remembers which frame of each layer it was made from and that frame's version, so a change in
+ * one layer only invalidates the composites that frame contributes to. Single-frame layers at the bottom of the stack
+ * (typically a static background) are pre-composited once into a shared base.
+ * <p>
+ * Background passes can be restricted to a range of indices, such as a loop range. Composites outside the range are
+ * dropped, except for the last one requested.
+ */
+public class LayerCompositor {
+
+    private final AtomicBoolean refreshQueued = new AtomicBoolean(false);
+    private final AtomicBoolean refreshDeferred = new AtomicBoolean(false);
+
+    private final Map<Integer, Composite> cache = new ConcurrentHashMap<>();
+    private final AtomicReference<Composite> base = new AtomicReference<>();
+
+    private volatile List<List<Frame>> layers = List.of();
+    private volatile int primary = 0;
+    private volatile int rangeIn = 0, rangeOut = Integer.MAX_VALUE;
+    private volatile int requested = -1;
+    private volatile boolean closed = false;
+    private volatile boolean suspended = false;
+
+    private final IntConsumer readyListener;
+
+
+    /**
+     * @param readyListener Called on the FX thread with the index of each composite that finished in the background.
+     */
+    public LayerCompositor(IntConsumer readyListener) {
+        this.readyListener = readyListener;
+    }
+
+    /**
+     * Replaces the layer stack. Composites whose contributing frames are unchanged are kept.
+     *
+     * @param layers  Snapshot of each layer's frames, bottom to top.
+     * @param primary Index of the layer whose frames make up the timeline.
+     */
+    public void setLayers(List<List<Frame>> layers, int primary) {
+        this.layers = layers;
+        this.primary = primary;
+        refresh();
+    }
+
+    /**
+     * @return True if there is more than one layer to composite.
+     */
+    public boolean isLayered() {
+        return layers.size() > 1;
+    }
+
+    /**
+     * Gets the cached composite for a frame index without blocking. If the composite is missing or out of date, it is
+     * recomposited in the background and the ready listener is notified.
+     *
+     * @param index Frame index in the primary layer.
+     * @return The composite, possibly out of date, or null if none has been made yet.
+     */
+    public Image getComposite(int index) {
+        Composite c = cache.get(index);
+        if (c == null || !c.isValid(contributors(layers, index))) {
+            requested = index;
+            refresh();
+        }
+        return c == null ? null : c.image;
+    }
+
+    /**
+     * Gets whatever composite is cached for a frame index, possibly stale, without scheduling any work.
+     *
+     * @param index Frame index in the primary layer.
+     * @return The cached composite, or null.
+     */
+    public Image peekComposite(int index) {
+        Composite c = cache.get(index);
+        return c == null ? null : c.image;
+    }
+
+    /**
+     * Queues a background pass that recomposites every out of date index.
+     */
+    public void refresh() {
+        if (!isLayered()) {
+            cache.clear();
+            base.set(null);
+            return;
+        }
+        if (suspended) {
+            refreshDeferred.set(true);
+            return;
+        }
+        if (!refreshQueued.compareAndSet(false, true)) return;
+
+        DecodePool.submit(this::refreshPass);
+    }
+
+    /**
+     * Restricts background passes to a range of indices and drops composites outside it.
+     *
+     * @param in  First index to composite.
+     * @param out Last index to composite, {@link Integer#MAX_VALUE} for no limit.
+     */
+    public void setRange(int in, int out) {
+        rangeIn = in;
+        rangeOut = out;
+        refresh();
+    }
+
+    /**
+     * Stops or resumes background compositing. Refreshes requested while suspended are deferred until resumed, a pass
+     * in progress stops after its current composite.
+     *
+     * @param suspended True to suspend.
+     */
+    public void setSuspended(boolean suspended) {
+        this.suspended = suspended;
+        if (!suspended && refreshDeferred.getAndSet(false)) refresh();
+    }
+
+    /**
+     * Recomposites every out of date index. Synchronized so passes of one compositor never overlap in the shared pool.
+     */
+    private synchronized void refreshPass() {
+        refreshQueued.set(false);
+        if (closed) return;
+
+        List<List<Frame>> layers = this.layers;
+        int count = primary < layers.size() ? layers.get(primary).size() : 0;
+        int in = rangeIn, out = Math.min(rangeOut, count - 1), extra = requested;
+        cache.keySet().removeIf(i -> i >= count || ((i < in || i > out) && i != extra));
+
+        // The requested index first if it is outside the range, then the range
+        for (int n = in - 1; n <= out && !closed; n++) {
+            int i = n < in ? extra : n;
+            if (i < 0 || i >= count || (n < in && i >= in && i <= out)) continue;
+
+            if (suspended) {
+                refreshDeferred.set(true);
+                return;
+            }
+
+            Frame[] sources = contributors(layers, i);
+            Composite c = cache.get(i);
+            if (c != null && c.isValid(sources)) continue;
+
+            try {
+                cache.put(i, composite(layers, primary, sources, base, true));
+            } catch (Exception e) {
+                Main.log.log(Level.WARNING, "Failed to composite frame " + i, e);
+                continue;
+            }
+
+            final int index = i;
+            Platform.runLater(() -> readyListener.accept(index));
+
+            // Layers changed while compositing, start a fresh pass
+            if (layers != this.layers) {
+                refresh();
+                return;
+            }
+        }
+    }
+
+    public void close() {
+        closed = true;
+        cache.clear();
+        base.set(null);
+    }
+
+    /**
+     * @param base Pre-composited static layers, reused and replaced as needed.
+     * @param keep True to keep images decoded here in their frames.
+     */
+    private static Composite composite(List<List<Frame>> layers, int primary, Frame[] sources, AtomicReference<Composite> base, boolean keep) {
+        // Static layers at the bottom of the stack
+        int staticCount = 0;
+        while (staticCount < primary && layers.get(staticCount).size() == 1) staticCount++;
+
+        Frame[] baseSources = new Frame[staticCount];
+        System.arraycopy(sources, 0, baseSources, 0, staticCount);
+        Composite b = base.get();
+        if (staticCount > 1 && (b == null || !b.isValid(baseSources))) {
+            b = blend(baseSources, 0, null, true, keep);
+            base.set(b);
+        }
+
+        if (staticCount > 1) {
+            return blend(sources, staticCount, b, false, keep);
+        } else {
+            return blend(sources, 0, null, false, keep);
+        }
+    }
+
+    private static Composite blend(Frame[] sources, int from, Composite base, boolean keepPixels, boolean keep) {
+        long[] versions = new long[sources.length];
+        Image[] images = Blending.load(sources, from, versions, keep);
+        if (base != null) System.arraycopy(base.versions, 0, versions, 0, from);
+
+        int width = base == null ? 0 : base.width, height = base == null ? 0 : base.height;
+        for (int i = from; i < sources.length; i++) {
+            if (images[i] == null) continue;
+            width = Math.max(width, (int) images[i].getWidth());
+            height = Math.max(height, (int) images[i].getHeight());
+        }
+        width = Math.max(width, 1);
+        height = Math.max(height, 1);
+
+        int[] canvas = new int[width * height];
+        if (base != null) {
+            for (int y = 0; y < base.height; y++) {
+                System.arraycopy(base.pixels, y * base.width, canvas, y * width, base.width);
+            }
+        }
+
+        int[] layer = null;
+        for (int i = from; i < sources.length; i++) {
+            Image img = images[i];
+            if (img == null) continue;
+
+            int w = (int) img.getWidth(), h = (int) img.getHeight();
+            if (layer == null || layer.length < w * h) layer = new int[w * h];
+            img.getPixelReader().getPixels(0, 0, w, h, Blending.FORMAT, layer, 0, w);
+
+            for (int y = 0; y < h; y++) {
+                int src = y * w, dst = y * width;
+                for (int x = 0; x < w; x++, src++, dst++) {
+                    canvas[dst] = Blending.over(layer[src], canvas[dst]);
+                }
+            }
+        }
+
+        WritableImage out = new WritableImage(width, height);
+        out.getPixelWriter().setPixels(0, 0, width, height, Blending.FORMAT, canvas, 0, width);
+
+        return new Composite(sources, versions, out, keepPixels ? canvas : null, width, height);
+    }
+
+    private static Frame[] contributors(List<List<Frame>> layers, int index) {
+        Frame[] sources = new Frame[layers.size()];
+        for (int i = 0; i < sources.length; i++) {
+            List<Frame> layer = layers.get(i);
+            if (!layer.isEmpty()) sources[i] = layer.get(Math.min(index, layer.size() - 1));
+        }
+        return sources;
+    }
+
+    /**
+     * A fixed layer stack composited on the calling thread, independent of the compositor's live layers and cache.
+     * Images decoded for it are not kept in their frames, so exporting a long animation doesn't keep every frame it
+     * touched. Safe to use from several threads at once.
+     */
+    public static final class Stack {
+
+        private final List<List<Frame>> layers;
+        private final int primary;
+        private final AtomicReference<Composite> base = new AtomicReference<>();
+
+
+        /**
+         * @param layers  Each layer's frames, bottom to top. Must not change while the stack is used.
+         * @param primary Index of the layer whose frames make up the timeline.
+         */
+        public Stack(List<List<Frame>> layers, int primary) {
+            this.layers = List.copyOf(layers);
+            this.primary = primary;
+        }
+
+        /**
+         * @param index Frame index in the primary layer.
+         * @return The composite.
+         */
+        public Image composite(int index) {
+            return LayerCompositor.composite(layers, primary, contributors(layers, index), base, false).image;
+        }
+
+    }
+
+    private static class Composite extends Blending.Stamp {
+
+        final Image image;
+        final int[] pixels;
+        final int width, height;
+
+
+        Composite(Frame[] sources, long[] versions, Image image, int[] pixels, int width, int height) {
+            super(sources, versions);
+            this.image = image;
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+        }
+
+    }
+
+}
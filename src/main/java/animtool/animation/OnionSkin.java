@@ -0,0 +1,454 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.animation;
+
+import animtool.gui.Main;
+import animtool.service.DecodePool;
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.scene.image.WritableImage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+
+/**
+ * Blends the previous and next frames as tinted ghosts under each frame, for onion skinning.
+ * <p>
+ * In a layered project the ghosts are drawn between the layers: first the layers below the project's own frames, then
+ * the ghosts of the neighbouring frames, then the frame itself and the layers above it. Only the project's own frames
+ * are ghosted, so a static background doesn't cover the ghosts or get ghosted itself.
+ * <p>
+ * Blends are made in the background and cached per frame index and settings. Like {@link LayerCompositor}, each blend
+ * remembers the frames it was made from and their versions, so it is only remade when one of those frames is reloaded
+ * or the frame list around it changes. A request for one frame also blends a short run of the frames after it, so
+ * playback finds them ready.
+ */
+public class OnionSkin {
+
+    /**
+     * Number of frames blended ahead of the requested one in each pass.
+     */
+    private static final int LOOKAHEAD = 24;
+    /**
+     * Budget for cached blends, in bytes.
+     */
+    private static final long BUDGET = Runtime.getRuntime().maxMemory() / 8;
+
+    /**
+     * Premultiplied tints for frames before and after the current frame.
+     */
+    private static final int BEFORE_TINT = 0xff_ff_40_40, AFTER_TINT = 0xff_40_c0_ff;
+
+    private final AtomicBoolean passQueued = new AtomicBoolean(false);
+    private final AtomicBoolean passDeferred = new AtomicBoolean(false);
+
+    private final LinkedHashMap<Key, Blend> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private long cachedBytes = 0;
+
+    private volatile List<List<Frame>> layers = List.of();
+    private volatile int primary = 0;
+    private volatile Settings settings = new Settings(1, 1, 0.4);
+    private volatile int requested = -1;
+    private volatile int rangeIn = 0, rangeOut = Integer.MAX_VALUE;
+    private volatile boolean closed = false;
+    private volatile boolean suspended = false;
+
+    private final IntConsumer readyListener;
+
+
+    /**
+     * @param readyListener Called on the FX thread with the index of each blend that finished in the background.
+     */
+    public OnionSkin(IntConsumer readyListener) {
+        this.readyListener = readyListener;
+    }
+
+    /**
+     * Replaces the layer stack. Blends whose contributing frames are unchanged are kept.
+     *
+     * @param layers  Snapshot of each layer's frames, bottom to top.
+     * @param primary Index of the layer whose frames make up the timeline and are ghosted.
+     */
+    public void setLayers(List<List<Frame>> layers, int primary) {
+        this.primary = primary;
+        this.layers = layers;
+        refresh();
+    }
+
+    public Settings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Changes which frames are ghosted. Blends made with other settings stay cached until space is needed.
+     *
+     * @param settings New settings.
+     */
+    public void setSettings(Settings settings) {
+        this.settings = settings;
+        refresh();
+    }
+
+    /**
+     * Restricts look-ahead to a range of indices, wrapping around within it, and drops blends outside it. Blends
+     * requested outside the range are still made, without looking ahead.
+     *
+     * @param in  First index of the range.
+     * @param out Last index of the range, {@link Integer#MAX_VALUE} for no limit.
+     */
+    public void setRange(int in, int out) {
+        rangeIn = in;
+        rangeOut = out;
+        synchronized (cache) {
+            Iterator<Map.Entry<Key, Blend>> iter = cache.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry<Key, Blend> e = iter.next();
+                if (e.getKey().index >= in && e.getKey().index <= out) continue;
+
+                cachedBytes -= e.getValue().getBytes();
+                iter.remove();
+            }
+        }
+        refresh();
+    }
+
+    /**
+     * Gets the blend for a frame index without blocking. If it is missing or out of date, it is blended in the
+     * background along with the frames after it, and the ready listener is notified.
+     *
+     * @param index Frame index.
+     * @return The blend, or null if there is no up to date blend yet.
+     */
+    public Image getBlend(int index) {
+        Key key = new Key(index, settings);
+        Frame[] sources = contributors(layers, primary, index, key.settings);
+
+        Blend b;
+        synchronized (cache) {
+            b = cache.get(key);
+        }
+        if (b != null && b.isValid(sources)) return b.image;
+
+        requested = index;
+        queuePass();
+        return null;
+    }
+
+    /**
+     * Queues a background pass from the last requested index, remaking any blends that went out of date.
+     */
+    public void refresh() {
+        if (requested >= 0) queuePass();
+    }
+
+    /**
+     * Stops or resumes background blending. Passes requested while suspended are deferred until resumed, a pass in
+     * progress stops after its current blend.
+     *
+     * @param suspended True to suspend.
+     */
+    public void setSuspended(boolean suspended) {
+        this.suspended = suspended;
+        if (!suspended && passDeferred.getAndSet(false)) queuePass();
+    }
+
+    public void close() {
+        closed = true;
+        synchronized (cache) {
+            cache.clear();
+            cachedBytes = 0;
+        }
+    }
+
+    private void queuePass() {
+        if (suspended) {
+            passDeferred.set(true);
+            return;
+        }
+        if (passQueued.compareAndSet(false, true)) DecodePool.submit(this::pass);
+    }
+
+    /**
+     * Blends the requested index and the frames after it. Synchronized so passes of one onion skin never overlap in the
+     * shared pool.
+     */
+    private synchronized void pass() {
+        passQueued.set(false);
+
+        List<List<Frame>> layers = this.layers;
+        int primary = this.primary;
+        Settings settings = this.settings;
+        int start = requested, count = primary < layers.size() ? layers.get(primary).size() : 0;
+        if (start < 0 || count == 0) return;
+
+        int from = 0, length = count, lookahead = LOOKAHEAD;
+        int in = rangeIn, out = Math.min(rangeOut, count - 1);
+        if (start >= in && start <= out) {
+            from = in;
+            length = out - in + 1;
+        } else if (in > 0 || out < count - 1) {
+            lookahead = 1;
+        }
+
+        for (int n = 0; n < Math.min(lookahead, length) && !closed; n++) {
+            if (suspended) {
+                passDeferred.set(true);
+                return;
+            }
+
+            int i = from + (start - from + n) % length;
+            Key key = new Key(i, settings);
+            Frame[] sources = contributors(layers, primary, i, settings);
+
+            Blend b;
+            synchronized (cache) {
+                b = cache.get(key);
+            }
+            if (b != null && b.isValid(sources)) continue;
+
+            try {
+                store(key, blend(sources, primary, settings));
+            } catch (Exception e) {
+                Main.log.log(Level.WARNING, "Failed to blend onion skin for frame " + i, e);
+                continue;
+            }
+
+            Platform.runLater(() -> readyListener.accept(i));
+
+            // Moved on while blending, start over from the new position
+            if (requested != start || layers != this.layers || settings != this.settings) {
+                queuePass();
+                return;
+            }
+        }
+    }
+
+    private void store(Key key, Blend blend) {
+        synchronized (cache) {
+            Blend old = cache.put(key, blend);
+            if (old != null) cachedBytes -= old.getBytes();
+            cachedBytes += blend.getBytes();
+
+            Iterator<Blend> iter = cache.values().iterator();
+            while (cachedBytes > BUDGET && iter.hasNext()) {
+                Blend evicted = iter.next();
+                if (evicted == blend) break;
+                cachedBytes -= evicted.getBytes();
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * @return The frames of the layers below at the index, then the ghosted frames furthest before the current frame
+     * first, then furthest after, then the current frame, then the frames of the layers above at the index.
+     */
+    private static Frame[] contributors(List<List<Frame>> layers, int primary, int index, Settings settings) {
+        int ghosts = settings.before + settings.after;
+        Frame[] sources = new Frame[layers.size() + ghosts];
+        List<Frame> frames = primary < layers.size() ? layers.get(primary) : List.of();
+        int count = frames.size();
+        if (index < 0 || index >= count) return sources;
+
+        int s = 0;
+        for (int l = 0; l < primary; l++) {
+            sources[s++] = frameAt(layers.get(l), index);
+        }
+        for (int k = settings.before; k >= 1; k--) {
+            int i = index - k;
+            sources[s++] = i >= 0 ? frames.get(i) : null;
+        }
+        for (int k = settings.after; k >= 1; k--) {
+            int i = index + k;
+            sources[s++] = i < count ? frames.get(i) : null;
+        }
+        sources[s++] = frames.get(index);
+        for (int l = primary + 1; l < layers.size(); l++) {
+            sources[s++] = frameAt(layers.get(l), index);
+        }
+        return sources;
+    }
+
+    /**
+     * @return The frame a layer shows at an index, holding its last frame, or null if it has none.
+     */
+    private static Frame frameAt(List<Frame> layer, int index) {
+        return layer.isEmpty() ? null : layer.get(Math.min(index, layer.size() - 1));
+    }
+
+    /**
+     * @param primary Number of layer frames before the ghosts in the sources.
+     */
+    private static Blend blend(Frame[] sources, int primary, Settings settings) {
+        long[] versions = new long[sources.length];
+        Image[] images = Blending.load(sources, 0, versions, true);
+        int width = 1, height = 1;
+        for (int i = 0; i < sources.length; i++) {
+            if (images[i] == null) continue;
+            width = Math.max(width, (int) images[i].getWidth());
+            height = Math.max(height, (int) images[i].getHeight());
+        }
+
+        int[] canvas = new int[width * height];
+        int[] layer = null;
+        for (int i = 0; i < sources.length; i++) {
+            Image img = images[i];
+            if (img == null) continue;
+
+            int w = (int) img.getWidth(), h = (int) img.getHeight();
+            if (layer == null || layer.length < w * h) layer = new int[w * h];
+            img.getPixelReader().getPixels(0, 0, w, h, Blending.FORMAT, layer, 0, w);
+
+            int g = i - primary;
+            boolean current = g < 0 || g >= settings.before + settings.after;
+            int tint = 0, alpha = 256;
+            if (!current) {
+                boolean before = g < settings.before;
+                // Nearer frames are more opaque
+                int distance = before ? settings.before - g : settings.before + settings.after - g;
+                alpha = (int) Math.round(256 * settings.opacity / distance);
+                tint = before ? BEFORE_TINT : AFTER_TINT;
+            }
+
+            for (int y = 0; y < h; y++) {
+                int src = y * w, dst = y * width;
+                for (int x = 0; x < w; x++, src++, dst++) {
+                    int p = current ? layer[src] : ghost(layer[src], tint, alpha);
+                    canvas[dst] = Blending.over(p, canvas[dst]);
+                }
+            }
+        }
+
+        WritableImage out = new WritableImage(width, height);
+        out.getPixelWriter().setPixels(0, 0, width, height, Blending.FORMAT, canvas, 0, width);
+
+        return new Blend(sources, versions, out);
+    }
+
+    /**
+     * Tints a premultiplied pixel halfway towards a colour, keeping its coverage, then scales it by an alpha in 1/256.
+     */
+    private static int ghost(int p, int tint, int alpha) {
+        int a = p >>> 24;
+        if (a == 0) return 0;
+
+        int r = (((p >> 16) & 0xff) + ((tint >> 16) & 0xff) * a / 255) / 2;
+        int g = (((p >> 8) & 0xff) + ((tint >> 8) & 0xff) * a / 255) / 2;
+        int b = ((p & 0xff) + (tint & 0xff) * a / 255) / 2;
+        return ((a * alpha) >> 8) << 24 | ((r * alpha) >> 8) << 16 | ((g * alpha) >> 8) << 8 | ((b * alpha) >> 8);
+    }
+
+    /**
+     * Which frames are ghosted and how strongly.
+     */
+    public static final class Settings {
+
+        private final int before, after;
+        private final double opacity;
+
+
+        /**
+         * @param before  Number of previous frames to ghost.
+         * @param after   Number of next frames to ghost.
+         * @param opacity Opacity of the nearest ghosts, from 0 to 1. Further ghosts fade out.
+         */
+        public Settings(int before, int after, double opacity) {
+            this.before = Math.max(0, before);
+            this.after = Math.max(0, after);
+            this.opacity = Math.max(0, Math.min(1, opacity));
+        }
+
+        public int getBefore() {
+            return before;
+        }
+
+        public int getAfter() {
+            return after;
+        }
+
+        public double getOpacity() {
+            return opacity;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Settings)) return false;
+            Settings o = (Settings) obj;
+            return o.before == before && o.after == after && o.opacity == opacity;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(before, after, opacity);
+        }
+
+    }
+
+    private static class Key {
+
+        final int index;
+        final Settings settings;
+
+
+        Key(int index, Settings settings) {
+            this.index = index;
+            this.settings = settings;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && ((Key) obj).index == index && ((Key) obj).settings.equals(settings);
+        }
+
+        @Override
+        public int hashCode() {
+            return index * 31 + settings.hashCode();
+        }
+
+    }
+
+    private static class Blend extends Blending.Stamp {
+
+        final Image image;
+
+
+        Blend(Frame[] sources, long[] versions, Image image) {
+            super(sources, versions);
+            this.image = image;
+        }
+
+        long getBytes() {
+            return (long) image.getWidth() * (long) image.getHeight() * 4;
+        }
+
+    }
+
+}
@@ -0,0 +1,425 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.animation;
+
+import javafx.animation.AnimationTimer;
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+
+import java.util.Arrays;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Plays a sequence of frame delays in a loop, driven by FX pulse timestamps.
+ * <p>
+ * Frame end times are kept as a prefix sum in nanoseconds and the current frame is found by binary search on the
+ * position within the loop. The phase within the loop is always computed from the pulse timestamp relative to a fixed
+ * origin, so no error accumulates no matter how long the animation loops. Changing delays updates the prefix sum in
+ * place while keeping the current frame on screen.
+ * <p>
+ * The loop can be restricted to a range of frames, and can run ping-pong, forwards then backwards. In ping-pong mode
+ * the phase runs over twice the loop length and the second half maps back onto the loop mirrored.
+ * <p>
+ * When a {@link PlaybackStats} is attached, every frame change during playback is recorded with how late it was shown
+ * and how many frames were skipped over.
+ * <p>
+ * Playback can be suspended while nothing is watching it. The position keeps following the clock, so resuming picks
+ * up wherever the loop would be by then.
+ */
+public class PlaybackEngine {
+
+    private long[] ends = new long[0];
+    private int count = 0;
+
+    private boolean playing = false;
+    private boolean suspended = false;
+    private boolean resumed = false;
+    private long origin = 0;
+    private long pausedPhase = 0;
+
+    private int loopIn = 0;
+    private int loopOut = -1;
+    private boolean pingPong = false;
+
+    private final ReadOnlyIntegerWrapper index = new ReadOnlyIntegerWrapper(0);
+
+    private PlaybackStats stats = null;
+    private IntSupplier queueDepth = () -> 0;
+    private Runnable onStopped = () -> {};
+
+    /**
+     * Source of the timestamps that play, pause and edits anchor the phase to, in the time base of the pulses.
+     */
+    private final LongSupplier clock;
+    /**
+     * Created on the first play, so an engine that never plays doesn't need the FX toolkit.
+     */
+    private AnimationTimer timer = null;
+
+
+    public PlaybackEngine() {
+        this(System::nanoTime);
+    }
+
+    /**
+     * @param clock Supplies the current time in nanoseconds, in the same time base as the timestamps passed to
+     *              {@link #tick(long)}.
+     */
+    PlaybackEngine(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * @return Index of the frame that should currently be shown.
+     */
+    public ReadOnlyIntegerProperty indexProperty() {
+        return index.getReadOnlyProperty();
+    }
+
+    public int getIndex() {
+        return index.get();
+    }
+
+    /**
+     * Attaches statistics that are updated with the timing of every frame shown during playback.
+     *
+     * @param stats      Statistics to update, or null to stop collecting.
+     * @param queueDepth Supplies the number of pending decodes, recorded alongside missed frames.
+     */
+    public void setStats(PlaybackStats stats, IntSupplier queueDepth) {
+        this.stats = stats;
+        this.queueDepth = queueDepth == null ? () -> 0 : queueDepth;
+    }
+
+    /**
+     * @param onStopped Called when playback stops on its own because there are no frames left to play.
+     */
+    public void setOnStopped(Runnable onStopped) {
+        this.onStopped = onStopped == null ? () -> {} : onStopped;
+    }
+
+    /**
+     * Starts playback. With no frames to play, playback stops again right away.
+     */
+    public void play() {
+        if (playing) return;
+        if (count == 0) {
+            onStopped.run();
+            return;
+        }
+
+        playing = true;
+        origin = clock.getAsLong() - pausedPhase;
+        if (!suspended) startTimer();
+    }
+
+    public void pause() {
+        if (!playing) return;
+
+        long phase = currentPhase(clock.getAsLong());
+        pausedPhase = phaseOf(clampToFrame(positionAt(phase), index.get()), isBackward(phase));
+        playing = false;
+        stopTimer();
+    }
+
+    /**
+     * Stops or resumes the pulse timer without changing whether playback is playing.
+     *
+     * @param suspended True to stop presenting frames.
+     */
+    public void setSuspended(boolean suspended) {
+        if (this.suspended == suspended) return;
+
+        this.suspended = suspended;
+        if (!playing) return;
+        if (suspended) {
+            stopTimer();
+        } else {
+            resumed = true;
+            startTimer();
+        }
+    }
+
+    /**
+     * Jumps to the start of a frame. Frames outside the loop range are clamped to it.
+     *
+     * @param frame Frame index.
+     */
+    public void seek(int frame) {
+        if (count == 0) return;
+
+        frame = Math.max(first(), Math.min(frame, last()));
+        setPhase(phaseOf(start(frame), false));
+        index.set(frame);
+    }
+
+    /**
+     * Restricts the loop to a range of frames. The range may extend past the current frames, it is clamped whenever
+     * frames are counted. A frame on screen outside the range moves to the start of the range.
+     *
+     * @param in  Index of the first frame of the loop.
+     * @param out Index of the last frame of the loop.
+     */
+    public void setLoopRange(int in, int out) {
+        if (in < 0 || out < in) throw new IllegalArgumentException("Invalid loop range: " + in + "-" + out);
+
+        int current = index.get();
+        long offset = offsetInFrame(current);
+        boolean backward = isBackward(currentPhase(clock.getAsLong()));
+
+        loopIn = in;
+        loopOut = out;
+        reanchor(current, offset, backward);
+    }
+
+    /**
+     * Loops over all frames again.
+     */
+    public void clearLoopRange() {
+        int current = index.get();
+        long offset = offsetInFrame(current);
+        boolean backward = isBackward(currentPhase(clock.getAsLong()));
+
+        loopIn = 0;
+        loopOut = -1;
+        reanchor(current, offset, backward);
+    }
+
+    /**
+     * @param pingPong True to play the loop forwards then backwards, false to restart it from the first frame.
+     */
+    public void setPingPong(boolean pingPong) {
+        if (this.pingPong == pingPong) return;
+
+        int current = index.get();
+        long offset = offsetInFrame(current);
+
+        this.pingPong = pingPong;
+        reanchor(current, offset, false);
+    }
+
+    public boolean isPingPong() {
+        return pingPong;
+    }
+
+    /**
+     * Replaces all delays.
+     *
+     * @param delays Computed delay of each frame in milliseconds.
+     */
+    public void setDelays(double[] delays) {
+        int current = index.get();
+        long offset = offsetInFrame(current);
+        boolean backward = isBackward(currentPhase(clock.getAsLong()));
+
+        if (ends.length < delays.length) ends = new long[delays.length];
+        count = delays.length;
+        long time = 0;
+        for (int i = 0; i < count; i++) {
+            time += toNanos(delays[i]);
+            ends[i] = time;
+        }
+
+        reanchor(current, offset, backward);
+    }
+
+    /**
+     * Replaces the delays of a range of frames, shifting the end times of all following frames once.
+     *
+     * @param from   Index of the first frame in the range.
+     * @param delays Computed delay of each frame in the range in milliseconds.
+     */
+    public void setDelays(int from, double[] delays) {
+        if (from < 0 || from + delays.length > count) throw new IndexOutOfBoundsException("Range outside of frames");
+        if (delays.length == 0) return;
+
+        int current = index.get();
+        long offset = offsetInFrame(current);
+        boolean backward = isBackward(currentPhase(clock.getAsLong()));
+
+        int to = from + delays.length;
+        long oldEnd = ends[to - 1];
+        long time = start(from);
+        for (int i = from; i < to; i++) {
+            time += toNanos(delays[i - from]);
+            ends[i] = time;
+        }
+
+        long diff = time - oldEnd;
+        if (diff != 0) {
+            for (int i = to; i < count; i++) {
+                ends[i] += diff;
+            }
+        }
+
+        reanchor(current, offset, backward);
+    }
+
+    /**
+     * Shows the frame due at a pulse.
+     *
+     * @param now Pulse timestamp in nanoseconds.
+     */
+    void tick(long now) {
+        if (count == 0) return;
+
+        long position = positionAt(currentPhase(now));
+        int i = frameAt(position);
+        int previous = index.get();
+
+        // Frames passed while suspended weren't missed
+        boolean record = !resumed;
+        resumed = false;
+        if (i == previous) return;
+
+        if (stats != null && record) {
+            int skipped = pingPong ? Math.max(0, Math.abs(i - previous) - 1) : Math.floorMod(i - previous - 1, last() - first() + 1);
+            stats.record(i, Math.max(0, position - start(i)), skipped, queueDepth.getAsInt());
+        }
+
+        index.set(i);
+    }
+
+    /**
+     * @param position Position within the loop in nanoseconds.
+     * @return Index of the frame shown at that position.
+     */
+    private int frameAt(long position) {
+        // Ends are exclusive, so an exact match belongs to the next frame
+        int i = Arrays.binarySearch(ends, 0, count, position);
+        return i >= 0 ? Math.min(i + 1, count - 1) : Math.min(-i - 1, count - 1);
+    }
+
+    private int first() {
+        return loopOut < 0 ? 0 : Math.min(loopIn, count - 1);
+    }
+
+    private int last() {
+        return loopOut < 0 ? count - 1 : Math.min(loopOut, count - 1);
+    }
+
+    private long loopLength() {
+        return ends[last()] - start(first());
+    }
+
+    private long period() {
+        return pingPong ? 2 * loopLength() : loopLength();
+    }
+
+    private long currentPhase(long now) {
+        if (count == 0) return 0;
+        return playing ? Math.floorMod(now - origin, period()) : pausedPhase;
+    }
+
+    /**
+     * @param phase Phase within the loop in nanoseconds.
+     * @return Position in the whole sequence shown at that phase.
+     */
+    private long positionAt(long phase) {
+        long length = loopLength();
+        long p = Math.floorMod(phase, period());
+        return start(first()) + (p < length ? p : 2 * length - 1 - p);
+    }
+
+    private boolean isBackward(long phase) {
+        return count > 0 && pingPong && Math.floorMod(phase, period()) >= loopLength();
+    }
+
+    /**
+     * @param position Position in the whole sequence, within the loop.
+     * @param backward True for the phase on the backward half of a ping-pong loop.
+     * @return Phase at which that position is shown.
+     */
+    private long phaseOf(long position, boolean backward) {
+        long p = position - start(first());
+        return backward && pingPong ? 2 * loopLength() - 1 - p : p;
+    }
+
+    private long offsetInFrame(int frame) {
+        if (frame >= count) return 0;
+        return Math.max(0, positionAt(currentPhase(clock.getAsLong())) - start(frame));
+    }
+
+    /**
+     * Keeps a frame on screen at the same offset and direction after the delays or the loop changed. A frame outside
+     * the loop moves to the start of the loop.
+     */
+    private void reanchor(int frame, long offset, boolean backward) {
+        if (count == 0) {
+            pausedPhase = 0;
+            index.set(0);
+            if (playing) {
+                playing = false;
+                stopTimer();
+                onStopped.run();
+            }
+            return;
+        }
+
+        if (frame < first() || frame > last()) {
+            frame = first();
+            offset = 0;
+            backward = false;
+        }
+        setPhase(phaseOf(clampToFrame(start(frame) + offset, frame), backward));
+        index.set(frame);
+    }
+
+    private void startTimer() {
+        if (timer == null) {
+            timer = new AnimationTimer() {
+                @Override
+                public void handle(long now) {
+                    tick(now);
+                }
+            };
+        }
+        timer.start();
+    }
+
+    private void stopTimer() {
+        if (timer != null) timer.stop();
+    }
+
+    private void setPhase(long phase) {
+        pausedPhase = phase;
+        if (playing) origin = clock.getAsLong() - phase;
+    }
+
+    private long clampToFrame(long position, int frame) {
+        return Math.max(start(frame), Math.min(position, ends[frame] - 1));
+    }
+
+    private long start(int frame) {
+        return frame == 0 ? 0 : ends[frame - 1];
+    }
+
+    private static long toNanos(double millis) {
+        // Zero length frames would break the binary search
+        return Math.max(1, Math.round(millis * 1_000_000));
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.animation;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Collects presentation timing of played frames: how late each frame was shown compared to when it was scheduled,
+ * how many frames were skipped entirely, and how much decode work was queued whenever a frame was missed.
+ */
+public class PlaybackStats {
+
+    /**
+     * A frame is late when it is shown more than this long after it was scheduled, about one 60Hz pulse.
+     */
+    public static final long LATE_NANOS = 17_000_000;
+
+    /**
+     * Upper bounds of the lateness histogram buckets in milliseconds. The last bucket is unbounded.
+     */
+    private static final int[] BUCKETS = {1, 2, 4, 8, 17, 33, 67};
+    private static final int MAX_MISSES = 100;
+
+    private final long[] histogram = new long[BUCKETS.length + 1];
+    private long presented = 0, late = 0, dropped = 0;
+    private long totalLateness = 0, maxLateness = 0;
+    private final Deque<Miss> misses = new ArrayDeque<>();
+
+
+    /**
+     * Records a frame being shown.
+     *
+     * @param frame      Index of the frame.
+     * @param lateness   Time between when the frame was scheduled and when it was shown, in nanoseconds.
+     * @param skipped    Number of frames that were never shown between the previous frame and this one.
+     * @param queueDepth Number of decodes queued or in flight at the time.
+     */
+    public synchronized void record(int frame, long lateness, int skipped, int queueDepth) {
+        presented++;
+        totalLateness += lateness;
+        maxLateness = Math.max(maxLateness, lateness);
+
+        int ms = (int) (lateness / 1_000_000);
+        int bucket = 0;
+        while (bucket < BUCKETS.length && ms >= BUCKETS[bucket]) bucket++;
+        histogram[bucket]++;
+
+        dropped += skipped;
+        boolean isLate = lateness > LATE_NANOS;
+        if (isLate) late++;
+
+        if (isLate || skipped > 0) {
+            misses.addLast(new Miss(frame, lateness, skipped, queueDepth));
+            if (misses.size() > MAX_MISSES) misses.removeFirst();
+        }
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(histogram, 0);
+        presented = late = dropped = 0;
+        totalLateness = maxLateness = 0;
+        misses.clear();
+    }
+
+    public synchronized long getPresented() {
+        return presented;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public synchronized long getLate() {
+        return late;
+    }
+
+    /**
+     * @return A few lines suitable for an on-screen overlay.
+     */
+    public synchronized String getSummary() {
+        double mean = presented == 0 ? 0 : totalLateness / (double) presented / 1_000_000;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Frames: %d  Late: %d  Dropped: %d%n", presented, late, dropped));
+        sb.append(String.format("Lateness: mean %.1fms  max %.1fms%n", mean, maxLateness / 1_000_000.0));
+
+        Miss last = misses.peekLast();
+        if (last != null) {
+            sb.append(String.format("Last miss: frame %d, %.1fms late, %d skipped, %d decodes queued", last.frame, last.lateness / 1_000_000.0, last.skipped, last.queueDepth));
+        } else {
+            sb.append("No misses");
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * @return A full report including the lateness histogram and recent misses, suitable for logging.
+     */
+    public synchronized String getReport() {
+        StringBuilder sb = new StringBuilder("Playback timing report\n");
+        sb.append(getSummary()).append("\n");
+
+        sb.append("Lateness histogram:\n");
+        for (int i = 0; i < histogram.length; i++) {
+            String range = i == 0 ? String.format("<%dms", BUCKETS[0]) : i == BUCKETS.length ? String.format(">=%dms", BUCKETS[i - 1]) : String.format("%d-%dms", BUCKETS[i - 1], BUCKETS[i]);
+            double pct = presented == 0 ? 0 : histogram[i] * 100.0 / presented;
+            sb.append(String.format("  %8s: %6d (%5.1f%%)%n", range, histogram[i], pct));
+        }
+
+        sb.append("Recent misses:\n");
+        for (Miss miss : misses) {
+            sb.append(String.format("  frame %d: %.1fms late, %d skipped, %d decodes queued%n", miss.frame, miss.lateness / 1_000_000.0, miss.skipped, miss.queueDepth));
+        }
+
+        return sb.toString();
+    }
+
+    private static class Miss {
+
+        final int frame;
+        final long lateness;
+        final int skipped;
+        final int queueDepth;
+
+
+        Miss(int frame, long lateness, int skipped, int queueDepth) {
+            this.frame = frame;
+            this.lateness = lateness;
+            this.skipped = skipped;
+            this.queueDepth = queueDepth;
+        }
+
+    }
+
+}
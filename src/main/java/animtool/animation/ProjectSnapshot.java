@@ -0,0 +1,346 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.animation;
+
+import animtool.service.ImageCache;
+
+import java.io.File;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Immutable view of a project's frames and delays at one point in time. Safe to read from any thread without locks.
+ * <p>
+ * Per-frame values are kept in columns: delays, file sizes, modification times and content hashes in primitive arrays,
+ * a byte of flags per frame, and file names from a table the project interns them in, so every snapshot shares the same
+ * name strings. The lookup from file to index is an open addressed table of ints, probed by the file's hash and
+ * verified against the frame list. Large projects don't pay for a boxed map entry per frame, scans over a column stay
+ * in one array, and derived snapshots share the columns that didn't change.
+ * <p>
+ * File columns hold the last known values. They are filled from each frame's image state and the {@link ImageCache}
+ * when the frame list changes, and refreshed for single frames when they are loaded or fingerprinted.
+ */
+public class ProjectSnapshot {
+
+    /**
+     * Flag set when the file size and modification time of a frame are known.
+     */
+    public static final int FLAG_STAT = 1;
+    /**
+     * Flag set when the content hash of a frame is known.
+     */
+    public static final int FLAG_FINGERPRINT = 2;
+
+    public static final ProjectSnapshot EMPTY = new ProjectSnapshot(0, 0, List.of(), new double[0], 0, FileColumns.EMPTY);
+
+    private final long version;
+    private final long structureVersion;
+    private final List<Frame> frames;
+    private final double[] delays;
+    private final double defaultDelay;
+    private final FileColumns files;
+    /**
+     * Frame index plus one in each slot, zero for empty slots. The length is a power of two.
+     */
+    private final int[] slots;
+    private final int changedFrom, changedTo;
+
+
+    ProjectSnapshot(long version, long structureVersion, List<Frame> frames, double[] delays, double defaultDelay, FileColumns files) {
+        this.version = version;
+        this.structureVersion = structureVersion;
+        this.frames = List.copyOf(frames);
+        this.delays = delays;
+        this.defaultDelay = defaultDelay;
+        this.files = files;
+        this.changedFrom = 0;
+        this.changedTo = frames.size();
+
+        slots = new int[Integer.highestOneBit(Math.max(1, frames.size()) * 2) * 2];
+        int mask = slots.length - 1;
+        for (int i = 0; i < this.frames.size(); i++) {
+            int s = mix(this.frames.get(i).getFile().hashCode()) & mask;
+            while (slots[s] != 0) s = (s + 1) & mask;
+            slots[s] = i + 1;
+        }
+    }
+
+    private ProjectSnapshot(ProjectSnapshot previous, double[] delays, double defaultDelay, int changedFrom, int changedTo, FileColumns files) {
+        this.version = previous.version + 1;
+        this.structureVersion = previous.structureVersion;
+        this.frames = previous.frames;
+        this.slots = previous.slots;
+        this.delays = delays;
+        this.defaultDelay = defaultDelay;
+        this.files = files;
+        this.changedFrom = changedFrom;
+        this.changedTo = changedTo;
+    }
+
+    /**
+     * Derives a snapshot with the same frames and new delays or file columns.
+     *
+     * @param delays       Delays of all frames.
+     * @param defaultDelay Default delay.
+     * @param changedFrom  First index whose computed delay may differ from this snapshot.
+     * @param changedTo    Index after the last one whose computed delay may differ from this snapshot.
+     * @param files        File columns of all frames.
+     * @return The new snapshot.
+     */
+    ProjectSnapshot derive(double[] delays, double defaultDelay, int changedFrom, int changedTo, FileColumns files) {
+        return new ProjectSnapshot(this, delays, defaultDelay, changedFrom, changedTo, files);
+    }
+
+    /**
+     * @return Sequence number of this snapshot, increasing with every published change.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @param other Another snapshot of the same project.
+     * @return True if both snapshots have the same frames in the same order and only delays may differ.
+     */
+    public boolean hasSameFrames(ProjectSnapshot other) {
+        return other != null && other.structureVersion == structureVersion;
+    }
+
+    /**
+     * @return First index whose computed delay may differ from the previous snapshot.
+     */
+    public int getChangedFrom() {
+        return changedFrom;
+    }
+
+    /**
+     * @return Index after the last one whose computed delay may differ from the previous snapshot.
+     */
+    public int getChangedTo() {
+        return changedTo;
+    }
+
+    /**
+     * @return Frames in order.
+     */
+    public List<Frame> getFrames() {
+        return frames;
+    }
+
+    public int size() {
+        return frames.size();
+    }
+
+    /**
+     * @param index Frame index.
+     * @return The frame's own delay, or a value below 1 if it uses the default delay.
+     */
+    public double getDelay(int index) {
+        return delays[index];
+    }
+
+    /**
+     * @param index Frame index.
+     * @return The delay the frame is actually shown for.
+     */
+    public double getComputedDelay(int index) {
+        double d = delays[index];
+        return d <= 0 ? defaultDelay : d;
+    }
+
+    double[] getDelays() {
+        return delays;
+    }
+
+    public double getDefaultDelay() {
+        return defaultDelay;
+    }
+
+    /**
+     * @param index Frame index.
+     * @return File name of the frame, without its folder.
+     */
+    public String getName(int index) {
+        return files.names[index];
+    }
+
+    /**
+     * @param index Frame index.
+     * @return Last known file size in bytes, valid if {@link #FLAG_STAT} is set.
+     */
+    public long getFileSize(int index) {
+        return files.sizes[index];
+    }
+
+    /**
+     * @param index Frame index.
+     * @return Last known file modification time in milliseconds, valid if {@link #FLAG_STAT} is set.
+     */
+    public long getLastModified(int index) {
+        return files.modified[index];
+    }
+
+    /**
+     * @param index Frame index.
+     * @return Last known content hash, see {@link ContentFingerprint#getHash()}, valid if {@link #FLAG_FINGERPRINT} is
+     * set.
+     */
+    public long getHash(int index) {
+        return files.hashes[index];
+    }
+
+    /**
+     * @param index Frame index.
+     * @return Flags of the frame, a combination of the FLAG constants.
+     */
+    public int getFlags(int index) {
+        return files.flags[index];
+    }
+
+    FileColumns getFiles() {
+        return files;
+    }
+
+    /**
+     * @param file Absolute path of a frame's file.
+     * @return Index of the frame, or -1 if the file is not a frame in this snapshot.
+     */
+    public int indexOf(File file) {
+        int mask = slots.length - 1;
+        for (int s = mix(file.hashCode()) & mask; slots[s] != 0; s = (s + 1) & mask) {
+            int i = slots[s] - 1;
+            if (frames.get(i).getFile().equals(file)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Spreads the high bits of a hash code into the low bits used to pick a slot.
+     */
+    private static int mix(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @param file Absolute path of a frame's file.
+     * @return The frame, or null if the file is not a frame in this snapshot.
+     */
+    public Frame getFrame(File file) {
+        int i = indexOf(file);
+        return i < 0 ? null : frames.get(i);
+    }
+
+    /**
+     * The file columns of a snapshot. Filled in by {@link ProjectState} on the FX application thread and never changed
+     * once published.
+     */
+    static final class FileColumns {
+
+        static final FileColumns EMPTY = new FileColumns(new String[0], new long[0], new long[0], new long[0], new byte[0]);
+
+        final String[] names;
+        final long[] sizes, modified, hashes;
+        final byte[] flags;
+
+
+        private FileColumns(String[] names, long[] sizes, long[] modified, long[] hashes, byte[] flags) {
+            this.names = names;
+            this.sizes = sizes;
+            this.modified = modified;
+            this.hashes = hashes;
+            this.flags = flags;
+        }
+
+        /**
+         * Fills columns for a frame list.
+         *
+         * @param frames   Frames in order.
+         * @param previous Previous snapshot, whose values are kept for frames that have none right now.
+         * @param names    Interns file names.
+         * @return The new columns.
+         */
+        static FileColumns of(List<Frame> frames, ProjectSnapshot previous, UnaryOperator<String> names) {
+            int n = frames.size();
+            FileColumns c = new FileColumns(new String[n], new long[n], new long[n], new long[n], new byte[n]);
+            for (int i = 0; i < n; i++) {
+                Frame frame = frames.get(i);
+                c.names[i] = names.apply(frame.getFile().getName());
+                int old = previous.indexOf(frame.getFile());
+                if (old >= 0) c.copy(i, previous.files, old);
+                c.update(i, frame);
+            }
+            return c;
+        }
+
+        /**
+         * @return A copy whose values can be changed before it is published.
+         */
+        FileColumns copy() {
+            return new FileColumns(names, sizes.clone(), modified.clone(), hashes.clone(), flags.clone());
+        }
+
+        private void copy(int i, FileColumns from, int j) {
+            sizes[i] = from.sizes[j];
+            modified[i] = from.modified[j];
+            hashes[i] = from.hashes[j];
+            flags[i] = from.flags[j];
+        }
+
+        /**
+         * Reads a frame's current file values into a row, keeping the last known values where none are known now.
+         *
+         * @return True if any value changed.
+         */
+        boolean update(int i, Frame frame) {
+            long size = sizes[i], mod = modified[i], hash = hashes[i];
+            int f = flags[i];
+
+            ImageCache.Entry entry = ImageCache.get().get(frame.getFile());
+            if (entry != null) {
+                // A hash of other content than the file has now is not kept
+                if (entry.getSize() != size || entry.getModified() != mod) f &= ~FLAG_FINGERPRINT;
+                size = entry.getSize();
+                mod = entry.getModified();
+                f |= FLAG_STAT;
+            }
+            ContentFingerprint fp = frame.getFingerprint();
+            if (fp == null && entry != null) fp = entry.getFingerprint();
+            if (fp != null) {
+                hash = fp.getHash();
+                f |= FLAG_FINGERPRINT;
+            }
+
+            if (size == sizes[i] && mod == modified[i] && hash == hashes[i] && f == flags[i]) return false;
+            sizes[i] = size;
+            modified[i] = mod;
+            hashes[i] = hash;
+            flags[i] = (byte) f;
+            return true;
+        }
+
+    }
+
+}
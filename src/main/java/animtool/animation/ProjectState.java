@@ -0,0 +1,432 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.animation;
+
+import animtool.service.FxScheduler;
+import javafx.application.Platform;
+import javafx.beans.property.DoubleProperty;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Owns a project's frame list and delays.
+ * <p>
+ * The FX application thread is the single writer. Other threads, like folder watchers, submit commands that are queued
+ * and applied together in one batch on the next pulse, so a burst of file events costs one list update and one
+ * timeline refresh. After every batch an immutable {@link ProjectSnapshot} is published that any thread can read
+ * without locking.
+ * <p>
+ * Batches are applied to the observable frame list as the smallest set of ranged removals, insertions and replacements,
+ * so views bound to it only update the cells that changed.
+ * <p>
+ * Delay edits are tracked as a dirty index range. Edits made inside {@link #editDelays(Runnable)} are published once
+ * when the transaction ends, and loose edits are coalesced into one publish on the next pulse. Bulk edits of many
+ * frames are sliced through the {@link FxScheduler} so they don't stall rendering.
+ * <p>
+ * Frames report changes to their file size, modification time or fingerprint from any thread. Those rows of the
+ * snapshot's file columns are refreshed together on the next pulse, and a snapshot is only published if a value
+ * actually changed.
+ */
+public class ProjectState {
+
+    private interface Command {
+        /**
+         * @param frames Working copy of the frame list, kept sorted.
+         * @return True if the frame list was changed.
+         */
+        boolean apply(List<Frame> frames);
+    }
+
+    /**
+     * Batches that change more separate ranges than this replace the whole list in one change instead.
+     */
+    private static final int MAX_RANGED_CHANGES = 32;
+    /**
+     * Bulk delay edits touch at most this many frames per scheduler step.
+     */
+    private static final int DELAY_SLICE = 256;
+
+    private final DoubleProperty defaultDelay;
+    private final FrameComparator frameComparator = new FrameComparator();
+
+    private final ObservableList<Frame> frames = FXCollections.observableArrayList();
+    private final Queue<Command> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainQueued = new AtomicBoolean(false);
+
+    /**
+     * Frames whose file columns may have changed, reported from any thread.
+     */
+    private final Queue<Frame> changedFiles = new ConcurrentLinkedQueue<>();
+    /**
+     * Interned file names, so snapshots share one string per name. Only used on the FX application thread.
+     */
+    private Map<String, String> names = new HashMap<>();
+    private int dirtyFrom = Integer.MAX_VALUE, dirtyTo = 0;
+    private int transactionDepth = 0;
+
+    private volatile ProjectSnapshot snapshot = ProjectSnapshot.EMPTY;
+    private final ReadOnlyObjectWrapper<ProjectSnapshot> snapshotProperty = new ReadOnlyObjectWrapper<>(snapshot);
+
+
+    public ProjectState(DoubleProperty defaultDelay) {
+        this.defaultDelay = defaultDelay;
+
+        defaultDelay.addListener((observable, oldValue, newValue) -> markDirty(0, frames.size()));
+
+        // Only frames that enter or leave the list are touched, removed frames must stop reporting so they can be collected
+        frames.addListener((ListChangeListener<Frame>) c -> {
+            while (c.next()) {
+                for (Frame frame : c.getRemoved()) {
+                    frame.setOwner(null);
+                }
+                for (Frame frame : c.getAddedSubList()) {
+                    frame.setOwner(this);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The frame list. Only modified on, and must only be read on, the FX application thread.
+     */
+    public ObservableList<Frame> getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return The latest published snapshot. Safe to call from any thread.
+     */
+    public ProjectSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return Property updated on the FX application thread after every applied batch.
+     */
+    public ReadOnlyObjectProperty<ProjectSnapshot> snapshotProperty() {
+        return snapshotProperty.getReadOnlyProperty();
+    }
+
+    /**
+     * Replaces all frames.
+     *
+     * @param newFrames Frames in any order.
+     */
+    public void setFrames(Collection<Frame> newFrames) {
+        submit(list -> {
+            list.clear();
+            list.addAll(newFrames);
+            list.sort(frameComparator);
+            return true;
+        });
+    }
+
+    /**
+     * Adds a frame in sorted position, unless a frame for the same file already exists.
+     *
+     * @param frame Frame to add.
+     */
+    public void addFrame(Frame frame) {
+        submit(list -> {
+            int i = Collections.binarySearch(list, frame, frameComparator);
+            if (i >= 0 && list.get(i).equals(frame)) return false;
+            if (i < 0) i = -i - 1;
+
+            list.add(i, frame);
+            return true;
+        });
+    }
+
+    /**
+     * Removes the frame for a file, if there is one.
+     *
+     * @param file Absolute path of the frame's file.
+     */
+    public void removeFrame(File file) {
+        submit(list -> list.removeIf(frame -> frame.getFile().equals(file)));
+    }
+
+    /**
+     * Runs delay edits as one transaction that is published as a single snapshot. Must be called on the FX
+     * application thread. Transactions may be nested.
+     *
+     * @param edits Edits to frame delays or the default delay.
+     */
+    public void editDelays(Runnable edits) {
+        transactionDepth++;
+        try {
+            edits.run();
+        } finally {
+            transactionDepth--;
+        }
+
+        if (transactionDepth == 0 && dirtyFrom < dirtyTo) drain();
+    }
+
+    /**
+     * Sets the delay of a range of frames in one transaction.
+     *
+     * @param from  First frame index.
+     * @param to    Index after the last frame.
+     * @param delay Delay in milliseconds, or a value below 1 to use the default delay.
+     */
+    public void setDelays(int from, int to, double delay) {
+        List<Frame> targets = List.copyOf(frames.subList(Math.max(0, from), Math.max(Math.max(0, from), Math.min(to, frames.size()))));
+        double[] delays = new double[targets.size()];
+        Arrays.fill(delays, delay);
+        setDelays(targets, delays);
+    }
+
+    /**
+     * Sets the delays of many frames. Small edits are applied right away as one transaction. Larger edits are applied
+     * in transactions of {@value #DELAY_SLICE} frames spread over as many pulses as they need. Must be called on the FX
+     * application thread.
+     *
+     * @param targets Frames to edit.
+     * @param delays  Delay of each frame in milliseconds, or a value below 1 to use the default delay.
+     */
+    public void setDelays(List<Frame> targets, double[] delays) {
+        if (targets.size() <= DELAY_SLICE) {
+            editDelays(() -> {
+                for (int i = 0; i < targets.size(); i++) {
+                    targets.get(i).setDelay(delays[i]);
+                }
+            });
+            return;
+        }
+
+        int[] next = {0};
+        FxScheduler.get().submitSliced(null, FxScheduler.Priority.NORMAL, () -> {
+            int end = Math.min(targets.size(), next[0] + DELAY_SLICE);
+            editDelays(() -> {
+                for (int i = next[0]; i < end; i++) {
+                    targets.get(i).setDelay(delays[i]);
+                }
+            });
+            next[0] = end;
+            return end == targets.size();
+        });
+    }
+
+    /**
+     * Makes every frame use the default delay. Unlike {@link #setDelays(List, double[])} this is never sliced, so the
+     * reset is published as one snapshot, together with any edits of an enclosing transaction. Setting a delay is
+     * cheap and only frames with a delay of their own change. Must be called on the FX application thread.
+     */
+    public void resetDelays() {
+        editDelays(() -> {
+            for (Frame frame : frames) {
+                frame.setDelay(-1);
+            }
+        });
+    }
+
+    /**
+     * Called by a frame of this project when its own delay changed, on the FX application thread.
+     */
+    void delayChanged(Frame frame) {
+        int i = getSnapshot().indexOf(frame.getFile());
+        if (i >= 0) markDirty(i, i + 1);
+    }
+
+    /**
+     * Called by a frame of this project from any thread when its file size, modification time or fingerprint may have
+     * changed. Refreshed in the snapshot on the next pulse.
+     */
+    void fileChanged(Frame frame) {
+        changedFiles.add(frame);
+        if (drainQueued.compareAndSet(false, true)) queueDrain();
+    }
+
+    private void markDirty(int from, int to) {
+        dirtyFrom = Math.min(dirtyFrom, from);
+        dirtyTo = Math.max(dirtyTo, to);
+
+        if (transactionDepth == 0 && drainQueued.compareAndSet(false, true)) queueDrain();
+    }
+
+    private void submit(Command command) {
+        pending.add(command);
+
+        if (Platform.isFxApplicationThread() && transactionDepth == 0) {
+            drain();
+        } else if (drainQueued.compareAndSet(false, true)) {
+            queueDrain();
+        }
+    }
+
+    private void queueDrain() {
+        FxScheduler.get().submit(this, FxScheduler.Priority.HIGH, this::drain);
+    }
+
+    private void drain() {
+        drainQueued.set(false);
+
+        boolean changed = false;
+        if (!pending.isEmpty()) {
+            List<Frame> working = new ArrayList<>(frames);
+
+            Command command;
+            while ((command = pending.poll()) != null) {
+                changed |= command.apply(working);
+            }
+
+            if (changed) applyChanges(frames, working, frameComparator);
+        }
+
+        ProjectSnapshot previous = snapshot;
+        if (changed) {
+            changedFiles.clear();
+            double[] delays = new double[frames.size()];
+            for (int i = 0; i < delays.length; i++) {
+                delays[i] = frames.get(i).getDelay();
+            }
+            snapshot = new ProjectSnapshot(previous.getVersion() + 1, previous.getVersion() + 1, frames, delays, defaultDelay.get(), fileColumns(previous));
+        } else {
+            ProjectSnapshot.FileColumns files = updateFileColumns(previous);
+            boolean delaysChanged = dirtyFrom < dirtyTo;
+            if (!delaysChanged && files == previous.getFiles()) return;
+
+            double[] delays = previous.getDelays();
+            int from = 0, to = 0;
+            if (delaysChanged) {
+                from = dirtyFrom;
+                to = Math.min(dirtyTo, frames.size());
+                delays = Arrays.copyOf(delays, frames.size());
+                for (int i = from; i < to; i++) {
+                    delays[i] = frames.get(i).getDelay();
+                }
+            }
+            snapshot = previous.derive(delays, defaultDelay.get(), from, to, files);
+        }
+
+        dirtyFrom = Integer.MAX_VALUE;
+        dirtyTo = 0;
+        snapshotProperty.set(snapshot);
+    }
+
+    /**
+     * Fills the file columns for a new frame list, interning names in a fresh table so names of removed frames can be
+     * collected.
+     */
+    private ProjectSnapshot.FileColumns fileColumns(ProjectSnapshot previous) {
+        Map<String, String> old = names;
+        names = new HashMap<>(frames.size() * 2);
+        return ProjectSnapshot.FileColumns.of(frames, previous, name -> {
+            String interned = old.getOrDefault(name, name);
+            names.put(interned, interned);
+            return interned;
+        });
+    }
+
+    /**
+     * Refreshes the file columns of frames that reported changes.
+     *
+     * @return New columns, or the previous snapshot's if nothing changed.
+     */
+    private ProjectSnapshot.FileColumns updateFileColumns(ProjectSnapshot previous) {
+        ProjectSnapshot.FileColumns files = previous.getFiles();
+
+        Frame frame;
+        boolean copied = false, updated = false;
+        while ((frame = changedFiles.poll()) != null) {
+            int i = previous.indexOf(frame.getFile());
+            if (i < 0 || previous.getFrames().get(i) != frame) continue;
+
+            if (!copied) {
+                files = files.copy();
+                copied = true;
+            }
+            updated |= files.update(i, frame);
+        }
+
+        return updated ? files : previous.getFiles();
+    }
+
+    /**
+     * Brings the observable frame list in line with an updated working copy. Both are sorted, so one merge pass finds
+     * the ranges that differ, which are then applied back to front so earlier indices stay valid.
+     *
+     * @param frames     Observable frame list to update.
+     * @param working    Updated frame list, sorted the same way.
+     * @param comparator Order both lists are sorted by.
+     */
+    static void applyChanges(ObservableList<Frame> frames, List<Frame> working, Comparator<Frame> comparator) {
+        List<int[]> ranges = new ArrayList<>(); // {old from, old to, new from, new to}
+        int i = 0, j = 0;
+        int[] open = null;
+        while (i < frames.size() || j < working.size()) {
+            Frame a = i < frames.size() ? frames.get(i) : null;
+            Frame b = j < working.size() ? working.get(j) : null;
+
+            if (a != null && a == b) {
+                open = null;
+                i++;
+                j++;
+                continue;
+            }
+
+            if (open == null) {
+                open = new int[]{i, i, j, j};
+                ranges.add(open);
+                if (ranges.size() > MAX_RANGED_CHANGES) {
+                    frames.setAll(working);
+                    return;
+                }
+            }
+
+            int c = a == null ? 1 : b == null ? -1 : comparator.compare(a, b);
+            if (c <= 0) open[1] = ++i;
+            if (c >= 0) open[3] = ++j;
+        }
+
+        for (int r = ranges.size() - 1; r >= 0; r--) {
+            int[] range = ranges.get(r);
+            int removed = range[1] - range[0], added = range[3] - range[2];
+
+            if (removed == added) {
+                for (int k = 0; k < added; k++) {
+                    frames.set(range[0] + k, working.get(range[2] + k));
+                }
+            } else if (added == 0) {
+                frames.remove(range[0], range[1]);
+            } else if (removed == 0) {
+                frames.addAll(range[0], working.subList(range[2], range[3]));
+            } else {
+                frames.remove(range[0], range[1]);
+                frames.addAll(range[0], working.subList(range[2], range[3]));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,266 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.export;
+
+import java.util.Arrays;
+
+/**
+ * Reduces ARGB pixels to at most 256 indexed colors.
+ * <p>
+ * Frames with few enough distinct colors keep them exactly. Others are reduced by median cut over a histogram of 15
+ * bit colors, with each palette entry being the mean of the pixels in its box. Pixels less than half opaque map to a
+ * transparent index after the colors. All tables are primitive arrays reused across frames, instances are not thread
+ * safe.
+ */
+final class ColorQuantizer {
+
+    private static final int ALPHA_THRESHOLD = 0x80;
+    private static final int BINS = 1 << 15;
+    private static final int EXACT_SIZE = 1024;
+    private static final int EXACT_SHIFT = 32 - 10;
+
+    private final int[] exactKeys = new int[EXACT_SIZE];
+    private final int[] exactIndex = new int[EXACT_SIZE];
+
+    private final int[] counts = new int[BINS];
+    private final long[] sumR = new long[BINS], sumG = new long[BINS], sumB = new long[BINS];
+    private final byte[] binIndex = new byte[BINS];
+    /**
+     * Median cut boxes as inclusive bin bounds r0, r1, g0, g1, b0, b1 and the pixel count.
+     */
+    private final int[][] boxes = new int[256][7];
+
+    final int[] palette = new int[256];
+    int paletteSize;
+    int transparentIndex;
+    byte[] indices = new byte[0];
+
+
+    /**
+     * Quantizes pixels into {@link #indices}, {@link #palette} and {@link #transparentIndex}.
+     *
+     * @param argb  Non-premultiplied ARGB pixels.
+     * @param count Number of pixels.
+     */
+    void quantize(int[] argb, int count) {
+        if (indices.length < count) indices = new byte[count];
+        Arrays.fill(exactKeys, -1);
+        Arrays.fill(counts, 0);
+        Arrays.fill(sumR, 0);
+        Arrays.fill(sumG, 0);
+        Arrays.fill(sumB, 0);
+
+        boolean transparent = false;
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            int p = argb[i];
+            if (p >>> 24 < ALPHA_THRESHOLD) {
+                transparent = true;
+                continue;
+            }
+            int rgb = p & 0xffffff;
+            if (distinct <= 256 && exactSlot(rgb) < 0) distinct++;
+
+            int bin = bin(rgb);
+            counts[bin]++;
+            sumR[bin] += rgb >> 16;
+            sumG[bin] += (rgb >> 8) & 0xff;
+            sumB[bin] += rgb & 0xff;
+        }
+
+        int limit = transparent ? 255 : 256;
+        if (distinct <= limit) {
+            mapExact(argb, count);
+        } else {
+            medianCut(limit);
+            for (int i = 0; i < count; i++) {
+                int p = argb[i];
+                indices[i] = p >>> 24 < ALPHA_THRESHOLD ? 0 : binIndex[bin(p)];
+            }
+        }
+
+        if (transparent) {
+            transparentIndex = paletteSize;
+            palette[paletteSize++] = 0;
+            byte t = (byte) transparentIndex;
+            for (int i = 0; i < count; i++) {
+                if (argb[i] >>> 24 < ALPHA_THRESHOLD) indices[i] = t;
+            }
+        } else {
+            transparentIndex = -1;
+        }
+    }
+
+    /**
+     * Finds or inserts an exact color.
+     *
+     * @return Slot of an existing color, or -1 if it was inserted.
+     */
+    private int exactSlot(int rgb) {
+        int slot = (rgb * 0x9E3779B9) >>> EXACT_SHIFT;
+        while (exactKeys[slot] != -1) {
+            if (exactKeys[slot] == rgb) return slot;
+            slot = (slot + 1) & (EXACT_SIZE - 1);
+        }
+        exactKeys[slot] = rgb;
+        return -1;
+    }
+
+    private void mapExact(int[] argb, int count) {
+        paletteSize = 0;
+        for (int slot = 0; slot < EXACT_SIZE; slot++) {
+            if (exactKeys[slot] == -1) continue;
+            exactIndex[slot] = paletteSize;
+            palette[paletteSize++] = exactKeys[slot];
+        }
+        for (int i = 0; i < count; i++) {
+            int p = argb[i];
+            if (p >>> 24 < ALPHA_THRESHOLD) continue;
+            int rgb = p & 0xffffff;
+            int slot = (rgb * 0x9E3779B9) >>> EXACT_SHIFT;
+            while (exactKeys[slot] != rgb) slot = (slot + 1) & (EXACT_SIZE - 1);
+            indices[i] = (byte) exactIndex[slot];
+        }
+    }
+
+    private void medianCut(int limit) {
+        int n = 1;
+        setBox(boxes[0], 0, 31, 0, 31, 0, 31);
+        shrink(boxes[0]);
+
+        while (n < limit) {
+            // Split the most populated box that can still be split
+            int best = -1;
+            for (int i = 0; i < n; i++) {
+                int[] b = boxes[i];
+                if (b[1] == b[0] && b[3] == b[2] && b[5] == b[4]) continue;
+                if (best < 0 || b[6] > boxes[best][6]) best = i;
+            }
+            if (best < 0) break;
+
+            int[] box = boxes[best];
+            int axis = 0, extent = box[1] - box[0];
+            if (box[3] - box[2] > extent) {
+                axis = 1;
+                extent = box[3] - box[2];
+            }
+            if (box[5] - box[4] > extent) axis = 2;
+
+            // Find the plane at which half the box's pixels are below
+            int lo = box[axis * 2], hi = box[axis * 2 + 1];
+            int half = box[6] / 2, below = 0, cut = lo;
+            for (int v = lo; v < hi; v++) {
+                below += planeCount(box, axis, v);
+                cut = v;
+                if (below >= half) break;
+            }
+
+            int[] other = boxes[n++];
+            System.arraycopy(box, 0, other, 0, 6);
+            box[axis * 2 + 1] = cut;
+            other[axis * 2] = cut + 1;
+            shrink(box);
+            shrink(other);
+        }
+
+        paletteSize = n;
+        for (int i = 0; i < n; i++) {
+            int[] b = boxes[i];
+            long r = 0, g = 0, bl = 0, total = 0;
+            for (int ri = b[0]; ri <= b[1]; ri++) {
+                for (int gi = b[2]; gi <= b[3]; gi++) {
+                    for (int bi = b[4]; bi <= b[5]; bi++) {
+                        int bin = (ri << 10) | (gi << 5) | bi;
+                        binIndex[bin] = (byte) i;
+                        total += counts[bin];
+                        r += sumR[bin];
+                        g += sumG[bin];
+                        bl += sumB[bin];
+                    }
+                }
+            }
+            palette[i] = total == 0 ? 0 : (int) (r / total) << 16 | (int) (g / total) << 8 | (int) (bl / total);
+        }
+    }
+
+    private int planeCount(int[] b, int axis, int v) {
+        int sum = 0;
+        int r0 = axis == 0 ? v : b[0], r1 = axis == 0 ? v : b[1];
+        int g0 = axis == 1 ? v : b[2], g1 = axis == 1 ? v : b[3];
+        int b0 = axis == 2 ? v : b[4], b1 = axis == 2 ? v : b[5];
+        for (int ri = r0; ri <= r1; ri++) {
+            for (int gi = g0; gi <= g1; gi++) {
+                for (int bi = b0; bi <= b1; bi++) {
+                    sum += counts[(ri << 10) | (gi << 5) | bi];
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Shrinks a box to the bins that hold pixels and updates its count.
+     */
+    private void shrink(int[] b) {
+        int r0 = 31, r1 = 0, g0 = 31, g1 = 0, b0 = 31, b1 = 0, total = 0;
+        for (int ri = b[0]; ri <= b[1]; ri++) {
+            for (int gi = b[2]; gi <= b[3]; gi++) {
+                for (int bi = b[4]; bi <= b[5]; bi++) {
+                    int c = counts[(ri << 10) | (gi << 5) | bi];
+                    if (c == 0) continue;
+                    total += c;
+                    r0 = Math.min(r0, ri);
+                    r1 = Math.max(r1, ri);
+                    g0 = Math.min(g0, gi);
+                    g1 = Math.max(g1, gi);
+                    b0 = Math.min(b0, bi);
+                    b1 = Math.max(b1, bi);
+                }
+            }
+        }
+        if (total == 0) {
+            // Empty box, keep it unsplittable
+            setBox(b, b[0], b[0], b[2], b[2], b[4], b[4]);
+            b[6] = 0;
+        } else {
+            setBox(b, r0, r1, g0, g1, b0, b1);
+            b[6] = total;
+        }
+    }
+
+    private void setBox(int[] b, int r0, int r1, int g0, int g1, int b0, int b1) {
+        b[0] = r0;
+        b[1] = r1;
+        b[2] = g0;
+        b[3] = g1;
+        b[4] = b0;
+        b[5] = b1;
+    }
+
+    private static int bin(int rgb) {
+        return ((rgb >> 9) & 0x7c00) | ((rgb >> 6) & 0x3e0) | ((rgb >> 3) & 0x1f);
+    }
+
+}
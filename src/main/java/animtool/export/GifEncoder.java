@@ -0,0 +1,209 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.export;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes {@link GifFrame}s as a GIF89a stream.
+ * <p>
+ * Each frame gets its own graphic control extension with delay, disposal and transparency, and its own local color
+ * table. The logical screen takes the size of the first frame. Output is buffered and written to a channel in large
+ * chunks. Not thread safe.
+ */
+public class GifEncoder implements Closeable {
+
+    public static final int DISPOSAL_UNSPECIFIED = 0;
+    public static final int DISPOSAL_NONE = 1;
+    public static final int DISPOSAL_RESTORE_TO_BACKGROUND = 2;
+    public static final int DISPOSAL_RESTORE_TO_PREVIOUS = 3;
+
+    /**
+     * Loop count that repeats forever.
+     */
+    public static final int LOOP_FOREVER = 0;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final byte[] NETSCAPE = "NETSCAPE2.0".getBytes(StandardCharsets.US_ASCII);
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final int loops;
+
+    private boolean started = false, finished = false;
+    private long bytesWritten = 0;
+
+
+    /**
+     * @param channel Channel to write to.
+     * @param loops   Number of times the animation repeats, {@link #LOOP_FOREVER}, or negative to leave the loop
+     *                extension out and play once.
+     */
+    public GifEncoder(WritableByteChannel channel, int loops) {
+        this.channel = channel;
+        this.loops = loops;
+    }
+
+    /**
+     * Creates an encoder writing to a file, replacing its contents.
+     *
+     * @param file  File to write to.
+     * @param loops See {@link #GifEncoder(WritableByteChannel, int)}.
+     * @return The encoder, which closes the file when closed.
+     * @throws IOException If the file could not be opened.
+     */
+    public static GifEncoder open(File file, int loops) throws IOException {
+        return new GifEncoder(FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), loops);
+    }
+
+    /**
+     * Writes a frame.
+     *
+     * @param frame    Encoded frame.
+     * @param delay    Time the frame is shown in milliseconds, stored in hundredths of a second.
+     * @param disposal What happens to the frame before the next one is drawn, one of the DISPOSAL constants.
+     * @throws IOException If writing fails.
+     */
+    public void writeFrame(GifFrame frame, int delay, int disposal) throws IOException {
+        if (finished) throw new IllegalStateException("GIF already finished");
+        if (!started) writeHeader(frame.width, frame.height);
+
+        // Graphic control extension
+        put(0x21);
+        put(0xf9);
+        put(4);
+        put((disposal & 7) << 2 | (frame.transparentIndex >= 0 ? 1 : 0));
+        putShort(Math.min(0xffff, Math.max(0, delay / 10)));
+        put(Math.max(0, frame.transparentIndex));
+        put(0);
+
+        // Image descriptor with a local color table
+        put(0x2c);
+        putShort(0);
+        putShort(0);
+        putShort(frame.width);
+        putShort(frame.height);
+        put(0x80 | (frame.tableBits - 1));
+
+        put(frame.colorTable);
+        put(frame.data);
+    }
+
+    /**
+     * Writes the trailer and flushes, without closing the channel.
+     *
+     * @throws IOException If writing fails.
+     */
+    public void finish() throws IOException {
+        if (finished) return;
+        finished = true;
+        if (started) put(0x3b);
+        flush();
+    }
+
+    /**
+     * Finishes the GIF and closes the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes buffered bytes to the channel.
+     *
+     * @throws IOException If writing fails.
+     */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) bytesWritten += channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * @return Bytes written to the channel so far, not counting what is still buffered.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private void writeHeader(int width, int height) throws IOException {
+        started = true;
+        put("GIF89a".getBytes(StandardCharsets.US_ASCII));
+
+        // Logical screen descriptor without a global color table
+        putShort(width);
+        putShort(height);
+        put(0);
+        put(0);
+        put(0);
+
+        if (loops >= 0) {
+            put(0x21);
+            put(0xff);
+            put(NETSCAPE.length);
+            put(NETSCAPE);
+            put(3);
+            put(1);
+            putShort(loops);
+            put(0);
+        }
+    }
+
+    private void put(int b) throws IOException {
+        if (!buffer.hasRemaining()) flush();
+        buffer.put((byte) b);
+    }
+
+    private void putShort(int v) throws IOException {
+        put(v & 0xff);
+        put((v >> 8) & 0xff);
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.remaining()) {
+            flush();
+            if (bytes.length > buffer.capacity()) {
+                // Too large to be worth copying into the buffer
+                ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+                while (wrapped.hasRemaining()) bytesWritten += channel.write(wrapped);
+                return;
+            }
+        }
+        buffer.put(bytes);
+    }
+
+}
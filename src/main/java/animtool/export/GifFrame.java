@@ -0,0 +1,72 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.export;
+
+/**
+ * One frame quantized and compressed by a {@link GifFrameEncoder}, ready to be written by a {@link GifEncoder}.
+ */
+public final class GifFrame {
+
+    final int width, height;
+    /**
+     * Local color table, 3 bytes per entry, padded to {@code 1 << tableBits} entries.
+     */
+    final byte[] colorTable;
+    final int tableBits;
+    /**
+     * Transparent color index, or -1 if the frame is opaque.
+     */
+    final int transparentIndex;
+    /**
+     * Image data: the LZW minimum code size, data sub-blocks and the block terminator.
+     */
+    final byte[] data;
+
+
+    GifFrame(int width, int height, byte[] colorTable, int tableBits, int transparentIndex, byte[] data) {
+        this.width = width;
+        this.height = height;
+        this.colorTable = colorTable;
+        this.tableBits = tableBits;
+        this.transparentIndex = transparentIndex;
+        this.data = data;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return Encoded size of the frame's color table and image data in bytes.
+     */
+    public int getSize() {
+        return colorTable.length + data.length;
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.export;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+
+/**
+ * Turns ARGB pixels into a {@link GifFrame}, in two steps so callers can tell the time spent in each.
+ * <p>
+ * Quantizer tables, index buffer, LZW tables and output buffer are kept and reused for the next frame, so an encoder
+ * should live as long as the thread using it. Not thread safe.
+ */
+public class GifFrameEncoder {
+
+    private final ColorQuantizer quantizer = new ColorQuantizer();
+    private final LzwEncoder lzw = new LzwEncoder();
+    private final ByteSink sink = new ByteSink();
+
+    private int[] pixels = new int[0];
+    private int width = -1, height = -1;
+
+
+    /**
+     * Reads the pixels of an image into a buffer reused across calls.
+     *
+     * @param img Image to read.
+     * @return Non-premultiplied ARGB pixels, at least {@code width * height} long.
+     */
+    public int[] getPixels(RenderedImage img) {
+        int w = img.getWidth(), h = img.getHeight();
+        BufferedImage bi;
+        if (img instanceof BufferedImage) {
+            bi = (BufferedImage) img;
+        } else {
+            bi = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = bi.createGraphics();
+            g.drawRenderedImage(img, new AffineTransform());
+            g.dispose();
+        }
+
+        int[] buffer = getPixelBuffer(w * h);
+        bi.getRGB(0, 0, w, h, buffer, 0, w);
+        return buffer;
+    }
+
+    /**
+     * @param size Pixels needed.
+     * @return A buffer reused across calls, at least {@code size} long.
+     */
+    public int[] getPixelBuffer(int size) {
+        if (pixels.length < size) pixels = new int[size];
+        return pixels;
+    }
+
+    /**
+     * Reduces the pixels of a frame to its color table and indices, to be compressed by {@link #compress()}.
+     *
+     * @param argb   Non-premultiplied ARGB pixels, row by row.
+     * @param width  Width of the frame.
+     * @param height Height of the frame.
+     */
+    public void quantize(int[] argb, int width, int height) {
+        quantizer.quantize(argb, width * height);
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Compresses the frame last passed to {@link #quantize(int[], int, int)}.
+     *
+     * @return The encoded frame.
+     */
+    public GifFrame compress() {
+        if (width < 0) throw new IllegalStateException("No frame quantized");
+
+        int colors = quantizer.paletteSize;
+        int bits = 1;
+        while (1 << bits < colors) bits++;
+
+        byte[] table = new byte[3 << bits];
+        for (int i = 0; i < colors; i++) {
+            int c = quantizer.palette[i];
+            table[i * 3] = (byte) (c >> 16);
+            table[i * 3 + 1] = (byte) (c >> 8);
+            table[i * 3 + 2] = (byte) c;
+        }
+
+        sink.reset();
+        lzw.encode(quantizer.indices, width * height, Math.max(2, bits), sink);
+
+        GifFrame frame = new GifFrame(width, height, table, bits, quantizer.transparentIndex, sink.toByteArray());
+        width = height = -1;
+        return frame;
+    }
+
+    /**
+     * Quantizes and compresses a frame.
+     */
+    public GifFrame encode(int[] argb, int width, int height) {
+        quantize(argb, width, height);
+        return compress();
+    }
+
+}
@@ -24,17 +24,22 @@
 
 package animtool.export;
 
-import javax.imageio.*;
-import javax.imageio.metadata.IIOInvalidTreeException;
-import javax.imageio.metadata.IIOMetadata;
-import javax.imageio.metadata.IIOMetadataNode;
 import javax.imageio.stream.ImageOutputStream;
 import java.awt.image.RenderedImage;
 import java.io.IOException;
-
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes a sequence of images as an animated GIF with a default delay and disposal for every frame.
+ * <p>
+ * Kept for callers of the ImageIO based writer this used to be. Frames are now encoded by a {@link GifFrameEncoder}
+ * and written by a {@link GifEncoder}.
+ */
 public class GifSequenceWriter {
 
     public static final String NONE_DISPOSAL = "none";
+    public static final String DO_NOT_DISPOSE = "doNotDispose";
     public static final String RESTORE_TO_BACKGROUND_DISPOSAL = "restoreToBackgroundColor";
     public static final String RESTORE_TO_PREVIOUS_DISPOSAL = "restoreToPrevious";
     public static final String UNDEFINED_DISPOSAL_METHOD_4 = "undefinedDisposalMethod4";
@@ -42,78 +47,86 @@ public class GifSequenceWriter {
     public static final String UNDEFINED_DISPOSAL_METHOD_6 = "undefinedDisposalMethod6";
     public static final String UNDEFINED_DISPOSAL_METHOD_7 = "undefinedDisposalMethod7";
 
-    private ImageWriter writer;
-    private ImageWriteParam params;
-    private IIOMetadata metadata;
-
+    /**
+     * Disposal names indexed by their GIF code, the same names the ImageIO GIF metadata uses.
+     */
+    private static final String[] DISPOSALS = {NONE_DISPOSAL, DO_NOT_DISPOSE, RESTORE_TO_BACKGROUND_DISPOSAL,
+            RESTORE_TO_PREVIOUS_DISPOSAL, UNDEFINED_DISPOSAL_METHOD_4, UNDEFINED_DISPOSAL_METHOD_5,
+            UNDEFINED_DISPOSAL_METHOD_6, UNDEFINED_DISPOSAL_METHOD_7};
+
+    private final GifEncoder encoder;
+    private final GifFrameEncoder frames = new GifFrameEncoder();
+    private final int delay;
+    private final int disposal;
+
+
+    /**
+     * @param out       Stream to write to, left open by {@link #close()}.
+     * @param imageType Unused, frames of any type are converted as they are written.
+     * @param delay     Default frame delay in milliseconds.
+     * @param loop      Whether the animation repeats forever.
+     * @param disposal  One of the disposal constants.
+     */
     public GifSequenceWriter(ImageOutputStream out, int imageType, int delay, boolean loop, String disposal) throws IOException {
-        writer = ImageIO.getImageWritersBySuffix("gif").next();
-        params = writer.getDefaultWriteParam();
-
-        ImageTypeSpecifier imageTypeSpecifier = ImageTypeSpecifier.createFromBufferedImageType(imageType);
-        metadata = writer.getDefaultImageMetadata(imageTypeSpecifier, params);
+        this(new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                int n = src.remaining();
+                if (src.hasArray()) {
+                    out.write(src.array(), src.arrayOffset() + src.position(), n);
+                    src.position(src.limit());
+                } else {
+                    byte[] b = new byte[n];
+                    src.get(b);
+                    out.write(b);
+                }
+                return n;
+            }
 
-        configureRootMetadata(delay, loop, disposal);
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
 
-        writer.setOutput(out);
-        writer.prepareWriteSequence(null);
+            @Override
+            public void close() {
+            }
+        }, delay, loop, disposal);
     }
 
-    private void configureRootMetadata(int delay, boolean loop, String disposal) throws IIOInvalidTreeException {
-        String metaFormatName = metadata.getNativeMetadataFormatName();
-        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(metaFormatName);
-
-        IIOMetadataNode graphicsControlExtensionNode = getNode(root, "GraphicControlExtension");
-        graphicsControlExtensionNode.setAttribute("disposalMethod", disposal);
-        graphicsControlExtensionNode.setAttribute("userInputFlag", "FALSE");
-        graphicsControlExtensionNode.setAttribute("transparentColorFlag", "FALSE");
-        graphicsControlExtensionNode.setAttribute("delayTime", Integer.toString(delay / 10));
-        graphicsControlExtensionNode.setAttribute("transparentColorIndex", "0");
-
-        IIOMetadataNode appExtensionsNode = getNode(root, "ApplicationExtensions");
-        IIOMetadataNode child = new IIOMetadataNode("ApplicationExtension");
-        child.setAttribute("applicationID", "NETSCAPE");
-        child.setAttribute("authenticationCode", "2.0");
-
-        int loopContinuously = loop ? 0 : 1;
-        child.setUserObject(new byte[]{ 0x1, (byte) (loopContinuously & 0xFF), (byte) ((loopContinuously >> 8) & 0xFF)});
-        appExtensionsNode.appendChild(child);
-        metadata.setFromTree(metaFormatName, root);
+    /**
+     * @param out      Channel to write to, left open by {@link #close()}.
+     * @param delay    Default frame delay in milliseconds.
+     * @param loop     Whether the animation repeats forever.
+     * @param disposal One of the disposal constants.
+     */
+    public GifSequenceWriter(WritableByteChannel out, int delay, boolean loop, String disposal) {
+        encoder = new GifEncoder(out, loop ? GifEncoder.LOOP_FOREVER : 1);
+        this.delay = delay;
+        this.disposal = getDisposalCode(disposal);
     }
 
-    private static IIOMetadataNode getNode(IIOMetadataNode rootNode, String nodeName){
-        int nNodes = rootNode.getLength();
-        for (int i = 0; i < nNodes; i++){
-            if (rootNode.item(i).getNodeName().equalsIgnoreCase(nodeName)){
-                return (IIOMetadataNode) rootNode.item(i);
-            }
+    /**
+     * @param disposal One of the disposal constants.
+     * @return The GIF disposal method code, or {@link GifEncoder#DISPOSAL_UNSPECIFIED} if unknown.
+     */
+    public static int getDisposalCode(String disposal) {
+        for (int i = 0; i < DISPOSALS.length; i++) {
+            if (DISPOSALS[i].equals(disposal)) return i;
         }
-        IIOMetadataNode node = new IIOMetadataNode(nodeName);
-        rootNode.appendChild(node);
-        return(node);
+        return GifEncoder.DISPOSAL_UNSPECIFIED;
     }
 
     public void writeToSequence(RenderedImage img, int delay) throws IOException {
-        String metaFormatName = metadata.getNativeMetadataFormatName();
-        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(metaFormatName);
-
-        IIOMetadataNode graphicsControlExtensionNode = getNode(root, "GraphicControlExtension");
-        String old = graphicsControlExtensionNode.getAttribute("delayTime");
-        graphicsControlExtensionNode.setAttribute("delayTime", Integer.toString(delay / 10));
-        metadata.setFromTree(metaFormatName, root);
-
-        writeToSequence(img);
-
-        graphicsControlExtensionNode.setAttribute("delayTime", old);
-        metadata.setFromTree(metaFormatName, root);
+        encoder.writeFrame(frames.encode(frames.getPixels(img), img.getWidth(), img.getHeight()), delay, disposal);
     }
 
     public void writeToSequence(RenderedImage img) throws IOException {
-        writer.writeToSequence(new IIOImage(img, null, metadata), params);
+        writeToSequence(img, delay);
     }
 
     public void close() throws IOException {
-        writer.endWriteSequence();
+        encoder.finish();
     }
 
 }
@@ -0,0 +1,179 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.export;
+
+import java.util.Arrays;
+
+/**
+ * LZW compressor for GIF image data, after the classic compress/GIFEncoder scheme with 12 bit codes.
+ * <p>
+ * The string table is an open addressed hash table of primitive ints and the output is packed into 255 byte data
+ * sub-blocks by a reusable bit packer, so compressing a frame allocates nothing. Instances are reused across frames
+ * but are not thread safe.
+ */
+final class LzwEncoder {
+
+    private static final int MAX_BITS = 12;
+    private static final int MAX_MAX_CODE = 1 << MAX_BITS;
+    /**
+     * Prime table size giving an 80% occupancy for 4096 codes.
+     */
+    private static final int HASH_SIZE = 5003;
+
+    private final int[] hashes = new int[HASH_SIZE];
+    private final int[] codes = new int[HASH_SIZE];
+
+    private final byte[] block = new byte[256];
+    private int blockLength;
+    private int accumulator, accumulatedBits;
+
+    private int initBits, bits, maxCode, clearCode, eofCode, freeCode;
+    private boolean clearing;
+
+    private ByteSink out;
+
+
+    /**
+     * Compresses color indices, writing the minimum code size, the data sub-blocks and the block terminator.
+     *
+     * @param indices     Color index of each pixel.
+     * @param count       Number of pixels.
+     * @param minCodeSize Bits per color index, at least 2.
+     * @param out         Destination.
+     */
+    void encode(byte[] indices, int count, int minCodeSize, ByteSink out) {
+        this.out = out;
+        out.write(minCodeSize);
+
+        initBits = minCodeSize + 1;
+        bits = initBits;
+        maxCode = (1 << bits) - 1;
+        clearCode = 1 << minCodeSize;
+        eofCode = clearCode + 1;
+        freeCode = clearCode + 2;
+        clearing = false;
+        blockLength = 0;
+        accumulator = 0;
+        accumulatedBits = 0;
+
+        int shift = 0;
+        for (int f = HASH_SIZE; f < 65536; f *= 2) shift++;
+        shift = 8 - shift;
+
+        clearHashes();
+        output(clearCode);
+
+        int ent = count > 0 ? indices[0] & 0xff : 0;
+        outer:
+        for (int p = 1; p < count; p++) {
+            int c = indices[p] & 0xff;
+            int key = (c << MAX_BITS) + ent;
+            int i = (c << shift) ^ ent;
+
+            if (hashes[i] == key) {
+                ent = codes[i];
+                continue;
+            }
+            if (hashes[i] >= 0) {
+                // Secondary probe
+                int step = i == 0 ? 1 : HASH_SIZE - i;
+                do {
+                    i -= step;
+                    if (i < 0) i += HASH_SIZE;
+                    if (hashes[i] == key) {
+                        ent = codes[i];
+                        continue outer;
+                    }
+                } while (hashes[i] >= 0);
+            }
+
+            output(ent);
+            ent = c;
+            if (freeCode < MAX_MAX_CODE) {
+                codes[i] = freeCode++;
+                hashes[i] = key;
+            } else {
+                clearHashes();
+                freeCode = clearCode + 2;
+                clearing = true;
+                output(clearCode);
+            }
+        }
+
+        output(ent);
+        output(eofCode);
+        out.write(0);
+        this.out = null;
+    }
+
+    private void clearHashes() {
+        Arrays.fill(hashes, -1);
+    }
+
+    private void output(int code) {
+        accumulator &= (1 << accumulatedBits) - 1;
+        accumulator |= code << accumulatedBits;
+        accumulatedBits += bits;
+        while (accumulatedBits >= 8) {
+            put(accumulator & 0xff);
+            accumulator >>>= 8;
+            accumulatedBits -= 8;
+        }
+
+        // Grow the code size once the next code no longer fits, or reset it after a clear
+        if (freeCode > maxCode || clearing) {
+            if (clearing) {
+                bits = initBits;
+                maxCode = (1 << bits) - 1;
+                clearing = false;
+            } else {
+                bits++;
+                maxCode = bits == MAX_BITS ? MAX_MAX_CODE : (1 << bits) - 1;
+            }
+        }
+
+        if (code == eofCode) {
+            while (accumulatedBits > 0) {
+                put(accumulator & 0xff);
+                accumulator >>>= 8;
+                accumulatedBits -= 8;
+            }
+            flushBlock();
+        }
+    }
+
+    private void put(int b) {
+        block[++blockLength] = (byte) b;
+        if (blockLength == 255) flushBlock();
+    }
+
+    private void flushBlock() {
+        if (blockLength == 0) return;
+        block[0] = (byte) blockLength;
+        out.write(block, 0, blockLength + 1);
+        blockLength = 0;
+    }
+
+}
@@ -25,20 +25,33 @@
 package animtool.gui.editor;
 
 import animtool.animation.Frame;
+import animtool.animation.Layer;
+import animtool.animation.LayerCompositor;
+import animtool.animation.OnionSkin;
+import animtool.animation.PlaybackEngine;
+import animtool.animation.PlaybackStats;
+import animtool.animation.ProjectSnapshot;
+import animtool.animation.ProjectState;
 import animtool.export.GifSequenceWriter;
 import animtool.gui.Main;
 import animtool.gui.help.AboutController;
 import animtool.gui.help.HelpController;
 import animtool.gui.media.DynamicImageView;
+import animtool.gui.media.TiledImageView;
 import animtool.gui.projects.ProjectsController;
-import animtool.animation.FrameComparator;
+import animtool.service.DecodePool;
+import animtool.service.FxScheduler;
+import animtool.service.ImageCache;
+import animtool.service.ThumbnailAtlas;
+import animtool.service.WatchDispatcher;
+import animtool.watch.FileChange;
+import animtool.watch.FolderWatchListener;
+import animtool.watch.FolderWatcher;
 import javafx.animation.*;
 import javafx.application.Platform;
+import javafx.beans.InvalidationListener;
 import javafx.beans.property.*;
-import javafx.collections.FXCollections;
-import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
-import javafx.embed.swing.SwingFXUtils;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
@@ -51,34 +64,50 @@ import javafx.scene.image.ImageView;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
 import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
 import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.StackPane;
 import javafx.scene.layout.VBox;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.util.Duration;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import javax.imageio.ImageIO;
-import javax.imageio.stream.ImageOutputStream;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.*;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
 import java.util.logging.Level;
 
-import static java.nio.file.StandardWatchEventKinds.*;
-
 public class EditorController {
 
     private static final double DEFAULT_DELAY = 83.33333;
+    /**
+     * Minimum time between thumbnail strip updates while playing.
+     */
+    private static final long STRIP_FOLLOW_MILLIS = 250;
+    /**
+     * Paused seeks closer together than this count as scrubbing. Full size decodes wait until scrubbing settles.
+     */
+    private static final long SCRUB_SETTLE_MILLIS = 150;
+    /**
+     * Frames whose images are started loading per scheduler step when a folder is opened.
+     */
+    private static final int PRELOAD_SLICE = 16;
+    /**
+     * Time between timing overlay updates.
+     */
+    private static final long TIMING_HUD_MILLIS = 250;
 
     public BorderPane rootPane;
+    public StackPane previewStackPane;
     public DynamicImageView previewImageView;
+    public TiledImageView zoomView;
     public ListView<Frame> timeLineListView;
     public VBox controlsVBox;
     public Button leftButton;
@@ -88,21 +117,54 @@ public class EditorController {
     public Button exportButton;
     public TextField fpsTextField;
     public MenuBar menuBar;
+    public Label timingHudLabel;
+    public CheckMenuItem timingOverlayMenuItem;
+    public CheckMenuItem integerScalingMenuItem;
+    public CheckMenuItem onionSkinMenuItem;
+    public CheckMenuItem pingPongMenuItem;
+    public CheckMenuItem pauseInBackgroundMenuItem;
+    public ToggleGroup onionSkinFramesGroup;
 
     private Image playIcon = null;
     private Image pauseIcon = null;
 
-    private WatchService watcher;
-    private WatchKey watchKey;
+    private boolean watching = false;
+    private boolean closed = false;
+    private volatile boolean idle = false;
+    private boolean preloadInterrupted = false;
+    /**
+     * Files modified while idle, reloaded when the window is shown again.
+     */
+    private final Set<File> staleFiles = ConcurrentHashMap.newKeySet();
+    private FolderWatcher.Backend watchBackend = FolderWatcher.Backend.AUTO;
     private File currentFolder;
 
-    private final ObjectProperty<Timeline> timeline = new SimpleObjectProperty<>();
+    private boolean zoomed = false;
+    private double dragX = 0, dragY = 0;
+
+    private final PlaybackEngine playback = new PlaybackEngine();
+    private final PlaybackStats playbackStats = new PlaybackStats();
+    private final Timeline timingHudTimeline = new Timeline(new KeyFrame(Duration.millis(TIMING_HUD_MILLIS), event -> updateTimingHud()));
+    private final IntegerProperty playhead = new SimpleIntegerProperty(-1);
+    private long lastStripFollow = 0;
+    private long lastScrub = 0;
+    private Frame scrubLoad = null;
+    private final PauseTransition scrubSettle = new PauseTransition(Duration.millis(SCRUB_SETTLE_MILLIS));
+    private boolean followingPlayhead = false;
+    private int loopIn = 0, loopOut = -1;
+    private boolean movingLoop = false;
     private final BooleanProperty playing = new SimpleBooleanProperty(false);
     private final DoubleProperty defaultDelay = new SimpleDoubleProperty(DEFAULT_DELAY);
 
-    private final ObservableList<Frame> frames = FXCollections.observableArrayList();
-
-    private final FrameComparator frameComparator = new FrameComparator();
+    private final ProjectState state = new ProjectState(defaultDelay);
+    private final ObservableList<Frame> frames = state.getFrames();
+    /**
+     * Immutable, replaced on the FX application thread and read by watcher threads.
+     */
+    private volatile List<Layer> layersBelow = List.of(), layersAbove = List.of();
+    private final LayerCompositor compositor = new LayerCompositor(this::compositeReady);
+    private final OnionSkin onionSkin = new OnionSkin(this::onionSkinReady);
+    private GifExportTask exportTask = null;
 
 
     public EditorController(File folder) {
@@ -111,12 +173,11 @@ public class EditorController {
 
     @FXML
     public void initialize() {
-        initWatchService();
         initTimeLineView();
         initIcons();
+        initTimingHud();
 
         defaultDelay.addListener((observable, oldValue, newValue) -> fpsTextField.setText(1000 / newValue.intValue() + ""));
-        defaultDelay.addListener((observable, oldValue, newValue) -> refreshTimeline());
         fpsTextField.setText(1000 / defaultDelay.get() + "");
         fpsTextField.focusedProperty().addListener((observable, oldValue, newValue) -> {
             if (!newValue) {
@@ -126,14 +187,45 @@ public class EditorController {
         fpsTextField.setOnAction(event -> parseFPSFromTextField());
         playing.addListener((observable, oldValue, newValue) -> {
             if (playing.get()) {
-                timeline.get().play();
+                // Resume from whichever frame the user is looking at
+                if (playhead.get() >= 0 && playhead.get() != playback.getIndex()) playback.seek(playhead.get());
+                playback.play();
             } else {
-                timeline.get().pause();
+                playback.pause();
+                followPlayhead(true);
+                if (timingOverlayMenuItem.isSelected()) {
+                    updateTimingHud();
+                    Main.log.info(playbackStats.getReport());
+                }
             }
         });
-        frames.addListener((ListChangeListener<? super Frame>) c -> {
-            while (c.next()) {
-                c.getAddedSubList().forEach(o -> o.delayProperty().addListener((observable, oldValue, newValue) -> refreshTimeline()));
+        // Running out of frames stops the engine by itself, so the button has to follow
+        playback.setOnStopped(() -> playing.set(false));
+        playback.indexProperty().addListener((observable, oldValue, newValue) -> {
+            // A paused playhead stays put when the loop range moves away from it
+            if (!movingLoop || playing.get()) playhead.set(newValue.intValue());
+        });
+        playhead.addListener((observable, oldValue, newValue) -> {
+            if (playing.get()) {
+                showPlayhead();
+            } else {
+                scrubPlayhead();
+            }
+            followPlayhead(!playing.get());
+        });
+        scrubSettle.setOnFinished(event -> {
+            if (!playing.get()) showPlayhead();
+        });
+        state.snapshotProperty().addListener((observable, oldValue, newValue) -> {
+            if (newValue.hasSameFrames(oldValue)) {
+                refreshPlayback(newValue.getChangedFrom(), newValue.getChangedTo());
+                // File columns may have caught up with a modified frame
+                refreshZoom();
+            } else {
+                refreshLayers();
+                refreshPlayback();
+                applyLoopRange();
+                showPlayhead();
             }
         });
 
@@ -162,6 +254,7 @@ public class EditorController {
             });
 
             initAltTabbingFix();
+            initIdleMode();
 
             rootPane.getScene().getWindow().setOnCloseRequest(event -> close());
 
@@ -202,49 +295,413 @@ public class EditorController {
         fpsTextField.setText(fps + "");
     }
 
+    /**
+     * Goes idle while the window is minimized or hidden, and, if pausing in the background is on, while another window
+     * has the focus. Playback stops presenting frames, background compositing and preloading stop, and modified files
+     * are only remembered. Everything resumes as soon as the window is shown or focused again.
+     * <p>
+     * JavaFX doesn't report whether a window is covered by others, so a window fully hidden behind another one counts
+     * as in the background only through losing the focus.
+     */
+    private void initIdleMode() {
+        Stage stage = (Stage) rootPane.getScene().getWindow();
+        InvalidationListener update = observable -> updateIdle();
+        stage.iconifiedProperty().addListener(update);
+        stage.showingProperty().addListener(update);
+        stage.focusedProperty().addListener(update);
+    }
+
+    private void updateIdle() {
+        Stage stage = (Stage) rootPane.getScene().getWindow();
+        boolean background = pauseInBackgroundMenuItem.isSelected() && !stage.isFocused();
+        setIdle(stage.isIconified() || !stage.isShowing() || background);
+    }
+
+    private void setIdle(boolean idle) {
+        if (this.idle == idle || closed) return;
+        this.idle = idle;
+
+        playback.setSuspended(idle);
+        compositor.setSuspended(idle);
+        onionSkin.setSuspended(idle);
+        if (idle) {
+            timingHudTimeline.pause();
+            scrubSettle.stop();
+            Main.log.fine("Editor idle");
+            return;
+        }
+
+        Main.log.fine("Editor resumed");
+        if (timingOverlayMenuItem.isSelected()) timingHudTimeline.play();
+        reloadStaleFiles();
+        if (preloadInterrupted) {
+            preloadInterrupted = false;
+            preloadImages(this, state.getSnapshot().getFrames());
+        }
+        showPlayhead();
+    }
+
+    /**
+     * Hands the loop range to playback and the background caches. While a range is set, only its frames are
+     * preloaded and pinned in the image cache, and the full images of frames outside it are let go.
+     */
+    private void applyLoopRange() {
+        movingLoop = true;
+        try {
+            if (loopOut < 0) {
+                playback.clearLoopRange();
+            } else {
+                playback.setLoopRange(loopIn, loopOut);
+            }
+        } finally {
+            movingLoop = false;
+        }
+
+        if (loopOut < 0) {
+            compositor.setRange(0, Integer.MAX_VALUE);
+            onionSkin.setRange(0, Integer.MAX_VALUE);
+            ImageCache.get().pin(this, List.of());
+            return;
+        }
+
+        compositor.setRange(loopIn, loopOut);
+        onionSkin.setRange(loopIn, loopOut);
+
+        List<Frame> list = state.getSnapshot().getFrames();
+        int in = Math.min(loopIn, list.size()), out = Math.min(loopOut + 1, list.size());
+        List<Frame> range = list.subList(in, out);
+        List<File> files = new ArrayList<>();
+        for (Frame frame : range) {
+            files.add(frame.getFile());
+        }
+        ImageCache.get().pin(this, files);
+
+        for (int i = 0; i < list.size(); i++) {
+            if ((i < in || i >= out) && i != playhead.get()) list.get(i).unloadImage();
+        }
+        preloadImages(this, range);
+    }
+
+    /**
+     * @param in  Index of the first frame of the loop.
+     * @param out Index of the last frame of the loop, or -1 to loop over all frames.
+     */
+    private void setLoopRange(int in, int out) {
+        loopIn = out < 0 ? 0 : in;
+        loopOut = out;
+        applyLoopRange();
+        Main.log.info(out < 0 ? "Cleared loop range" : "Loop range: " + in + "-" + out);
+    }
+
+    /**
+     * Reloads the files that were modified while idle, in the background.
+     */
+    private void reloadStaleFiles() {
+        if (staleFiles.isEmpty()) return;
+
+        List<File> files = new ArrayList<>(staleFiles);
+        staleFiles.removeAll(files);
+        DecodePool.submit(() -> {
+            for (File file : files) {
+                Layer layer = findLayer(file.getParentFile().toPath());
+                if (layer == null) {
+                    fileModified(file);
+                } else if (layer.fileModified(file)) {
+                    compositor.refresh();
+                }
+            }
+        });
+    }
+
     private void initIcons() {
-        playIcon = new Image(getClass().getResource("/icons/play.png").toString());
-        pauseIcon = new Image(getClass().getResource("/icons/pause.png").toString());
+        ImageCache icons = ImageCache.get();
+        playIcon = icons.getResource(getClass(), "/icons/play.png");
+        pauseIcon = icons.getResource(getClass(), "/icons/pause.png");
 
         playButton.setText(null);
         playButton.setGraphic(new ImageView(playIcon));
         playing.addListener((observable, oldValue, newValue) -> ((ImageView) playButton.getGraphic()).setImage(newValue ? pauseIcon : playIcon));
 
         leftButton.setText(null);
-        leftButton.setGraphic(new ImageView(getClass().getResource("/icons/left.png").toString()));
+        leftButton.setGraphic(new ImageView(icons.getResource(getClass(), "/icons/left.png")));
 
         rightButton.setText(null);
-        rightButton.setGraphic(new ImageView(getClass().getResource("/icons/right.png").toString()));
+        rightButton.setGraphic(new ImageView(icons.getResource(getClass(), "/icons/right.png")));
 
         pinButton.setText(null);
-        pinButton.setGraphic(new ImageView(getClass().getResource("/icons/pin.png").toString()));
+        pinButton.setGraphic(new ImageView(icons.getResource(getClass(), "/icons/pin.png")));
         pinButton.setTooltip(new Tooltip("Pin window on top"));
 
         exportButton.setText(null);
-        exportButton.setGraphic(new ImageView(getClass().getResource("/icons/export.png").toString()));
+        exportButton.setGraphic(new ImageView(icons.getResource(getClass(), "/icons/export.png")));
         exportButton.setTooltip(new Tooltip("Export as gif"));
     }
 
+    private void initTimingHud() {
+        playback.setStats(playbackStats, () -> DecodePool.getQueueDepth() + Frame.getPendingLoads());
+        timingHudTimeline.setCycleCount(Animation.INDEFINITE);
+    }
+
+    private void setTimingOverlay(boolean show) {
+        timingHudLabel.setVisible(show);
+        if (show) {
+            updateTimingHud();
+            timingHudTimeline.play();
+        } else {
+            timingHudTimeline.stop();
+        }
+    }
+
+    private void updateTimingHud() {
+        timingHudLabel.setText(playbackStats.getSummary());
+    }
+
     private void initTimeLineView() {
-        frames.addListener((ListChangeListener<? super Frame>) c -> {
-            timeLineListView.getItems().clear();
-            timeLineListView.getItems().addAll(c.getList());
-        });
+        // Shared so the strip receives the exact ranges that changed and keeps its scroll position and selection
+        timeLineListView.setItems(frames);
         timeLineListView.setCellFactory(param -> new FrameListCell());
-        timeLineListView.getSelectionModel().getSelectedItems().addListener((ListChangeListener<? super Frame>) c -> {
-            if (!c.getList().isEmpty()) previewImageView.setImage(c.getList().get(0).getImage());
+        timeLineListView.getSelectionModel().selectedIndexProperty().addListener((observable, oldValue, newValue) -> {
+            if (!followingPlayhead && newValue.intValue() >= 0) seek(newValue.intValue());
         });
     }
 
+    /**
+     * Moves the playhead to a frame, seeking playback if it is running.
+     *
+     * @param index Frame index.
+     */
+    private void seek(int index) {
+        if (index < 0 || index >= frames.size()) return;
+
+        if (playing.get()) playback.seek(index);
+        playhead.set(index);
+    }
+
+    /**
+     * Shows the frame under the playhead in the preview. The preview renders from the playhead directly and never
+     * depends on the thumbnail strip.
+     */
+    private void showPlayhead() {
+        ProjectSnapshot snapshot = state.getSnapshot();
+        int i = playhead.get();
+        if (i < 0 || i >= snapshot.size()) return;
+
+        Frame frame = snapshot.getFrames().get(i);
+        if (zoomed) zoomTo(snapshot, i);
+        if (!playing.get()) {
+            // Latest wins, a decode started for a frame the user already moved past is dropped
+            if (scrubLoad != null && scrubLoad != frame) scrubLoad.cancelLoad();
+            scrubLoad = frame;
+        }
+        previewImageView.setImage(getPreviewImage(frame));
+    }
+
+    /**
+     * Shows the frame under the playhead after a paused seek. A single seek loads the frame right away. Rapid seeks,
+     * from holding an arrow key or dragging through the strip, only show images that are already decoded: the frame
+     * itself, its composite or its thumbnail. The full size frame is decoded once seeking settles.
+     */
+    private void scrubPlayhead() {
+        long now = System.currentTimeMillis();
+        boolean scrubbing = now - lastScrub < SCRUB_SETTLE_MILLIS;
+        lastScrub = now;
+
+        if (!scrubbing) {
+            scrubSettle.stop();
+            showPlayhead();
+            return;
+        }
+
+        ProjectSnapshot snapshot = state.getSnapshot();
+        int i = playhead.get();
+        if (i < 0 || i >= snapshot.size()) return;
+        Frame frame = snapshot.getFrames().get(i);
+        if (zoomed) zoomTo(snapshot, i);
+
+        if (scrubLoad != null && scrubLoad != frame && scrubLoad.cancelLoad()) scrubLoad = null;
+
+        Image img = compositor.isLayered() ? compositor.peekComposite(i) : frame.peekImage();
+        if (img != null) {
+            previewImageView.setImage(img);
+        } else {
+            ThumbnailAtlas.Slot thumb = frame.peekThumbnail();
+            if (thumb != null) {
+                double w = previewImageView.getDisplayWidth(), h = previewImageView.getDisplayHeight();
+                if (w <= 0 || h <= 0) {
+                    w = thumb.getViewport().getWidth();
+                    h = thumb.getViewport().getHeight();
+                }
+                previewImageView.setProxyImage(thumb.getImage(), thumb.getViewport(), w, h);
+            }
+        }
+
+        scrubSettle.playFromStart();
+    }
+
+    /**
+     * Moves the thumbnail strip selection to the playhead. While playing this happens at most every
+     * {@link #STRIP_FOLLOW_MILLIS} so playback cost doesn't depend on the ListView.
+     *
+     * @param force True to update regardless of when the strip was last updated.
+     */
+    private void followPlayhead(boolean force) {
+        long now = System.currentTimeMillis();
+        if (!force && now - lastStripFollow < STRIP_FOLLOW_MILLIS) return;
+        lastStripFollow = now;
+
+        int i = playhead.get();
+        if (i < 0 || i >= frames.size() || timeLineListView.getSelectionModel().getSelectedIndex() == i) return;
+
+        followingPlayhead = true;
+        try {
+            if (playing.get()) timeLineListView.scrollTo(i);
+            timeLineListView.getSelectionModel().select(i);
+        } finally {
+            followingPlayhead = false;
+        }
+    }
+
     /**
      * @param folder Folder containing the animation frames.
      */
     private void setFolder(File folder) {
+        acquireFolder(folder);
         loadFramesFromFolder(folder);
-        setWatchFolder(folder);
         currentFolder = folder;
         timeLineListView.getSelectionModel().select(0);
         loadConfig();
+        refreshLayers();
+        setWatchFolder(folder);
+    }
+
+    /**
+     * Adds a folder as a layer composited above or below the project's own frames.
+     *
+     * @param folder Folder containing the layer's frames.
+     * @param above  True to composite the layer above all current layers, false to put it below them.
+     */
+    private void addLayer(File folder, boolean above) {
+        if (folder.equals(currentFolder) || findLayer(folder.toPath()) != null) return;
+
+        Layer layer = new Layer(folder, defaultDelay);
+        layer.load();
+        if (above) {
+            List<Layer> list = new ArrayList<>(layersAbove);
+            list.add(layer);
+            layersAbove = List.copyOf(list);
+        } else {
+            List<Layer> list = new ArrayList<>(layersBelow);
+            list.add(0, layer);
+            layersBelow = List.copyOf(list);
+        }
+
+        acquireFolder(folder);
+        if (watching) {
+            try {
+                WatchDispatcher.get().register(folder.toPath(), watchBackend, watchListener);
+            } catch (IOException e) {
+                Main.log.log(Level.WARNING, "Unable to watch layer folder: " + folder.getAbsolutePath(), e);
+            }
+        }
+
+        Main.log.info("Added layer " + (above ? "above" : "below") + ": " + folder.getAbsolutePath());
+    }
+
+    /**
+     * Acquires a folder's cached images. If no editor had it open, it wasn't watched, so cached images and thumbnails
+     * of its files are checked against the disk once.
+     */
+    private static void acquireFolder(File folder) {
+        if (ImageCache.get().acquire(folder)) ThumbnailAtlas.get().validate(folder);
+    }
+
+    /**
+     * Drops cached images of a file that changed on disk, since caches don't check files themselves. While idle, the
+     * reload that would replace the file's thumbnail is deferred, so the thumbnail is dropped right away.
+     */
+    private void invalidateCached(File file) {
+        ImageCache.get().validate(file);
+        if (idle) Platform.runLater(() -> ThumbnailAtlas.get().remove(file));
+    }
+
+    private void removeLayers() {
+        for (Layer layer : getLayers()) {
+            if (watching) WatchDispatcher.get().unregister(layer.getFolder().toPath(), watchListener);
+            ImageCache.get().release(layer.getFolder());
+        }
+        layersBelow = List.of();
+        layersAbove = List.of();
+        refreshLayers();
+        showPlayhead();
+    }
+
+    /**
+     * @return Additional layers, not including the project's own frames, bottom to top.
+     */
+    private List<Layer> getLayers() {
+        List<Layer> list = new ArrayList<>(layersBelow);
+        list.addAll(layersAbove);
+        return list;
+    }
+
+    private Layer findLayer(Path folder) {
+        for (Layer layer : getLayers()) {
+            if (layer.getFolder().toPath().toAbsolutePath().equals(folder.toAbsolutePath())) return layer;
+        }
+        return null;
+    }
+
+    /**
+     * Hands the current frames of every layer to the compositor and the onion skin. Safe to call from any thread.
+     */
+    private void refreshLayers() {
+        List<Layer> below = layersBelow;
+        List<List<Frame>> stack = layerStack(below, layersAbove, state.getSnapshot().getFrames());
+        compositor.setLayers(stack, below.size());
+        onionSkin.setLayers(stack, below.size());
+    }
+
+    /**
+     * @return The current frames of every layer with the project's own frames in between, bottom to top.
+     */
+    private static List<List<Frame>> layerStack(List<Layer> below, List<Layer> above, List<Frame> frames) {
+        List<List<Frame>> stack = new ArrayList<>();
+        below.forEach(layer -> stack.add(layer.getFrames()));
+        stack.add(frames);
+        above.forEach(layer -> stack.add(layer.getFrames()));
+        return stack;
+    }
+
+    /**
+     * @param frame Frame of the project's own folder.
+     * @return The image to preview for the frame: its onion skin blend, which includes all layers, if onion skinning is
+     * on and the blend is ready, otherwise the frame composited with all layers if there are any.
+     */
+    private Image getPreviewImage(Frame frame) {
+        int index = state.getSnapshot().indexOf(frame.getFile());
+        if (onionSkinMenuItem.isSelected()) {
+            Image blend = onionSkin.getBlend(index);
+            if (blend != null) return blend;
+        }
+
+        if (!compositor.isLayered()) return frame.getImage();
+
+        Image composite = compositor.getComposite(index);
+        return composite != null ? composite : frame.getImage();
+    }
+
+    private void compositeReady(int index) {
+        ProjectSnapshot snapshot = state.getSnapshot();
+        if (playhead.get() == index && index < snapshot.size()) {
+            previewImageView.setImage(getPreviewImage(snapshot.getFrames().get(index)));
+        }
+    }
+
+    private void onionSkinReady(int index) {
+        if (playhead.get() == index && onionSkinMenuItem.isSelected()) {
+            Image blend = onionSkin.getBlend(index);
+            if (blend != null) previewImageView.setImage(blend);
+        }
     }
 
     /**
@@ -253,33 +710,98 @@ public class EditorController {
      * @param folder Folder containing animation frames.
      */
     private void loadFramesFromFolder(File folder) {
-        frames.clear();
+        List<Frame> list = new ArrayList<>();
         File[] images = folder.listFiles(Main.imageFilter);
         for (File file : Objects.requireNonNull(images)) {
             if (Main.imageFilter.accept(file.getParentFile(), file.getName())) {
-                Frame frame = new Frame(file, defaultDelay);
-                frame.loadImage();
-                frames.add(frame);
+                list.add(new Frame(file, defaultDelay));
+            }
+        }
+        state.setFrames(list);
+        preloadImages(this, list);
+    }
+
+    /**
+     * Starts loading frame images a few at a time within the FX scheduler's budget, so opening a large folder doesn't
+     * freeze the window. Frames shown before their turn load on demand.
+     *
+     * @param key  Scheduler key, a later preload with the same key replaces this one.
+     * @param list Frames to load.
+     */
+    private void preloadImages(Object key, List<Frame> list) {
+        Iterator<Frame> iter = list.iterator();
+        FxScheduler.get().submitSliced(key, FxScheduler.Priority.LOW, () -> {
+            if (idle) {
+                preloadInterrupted = true;
+                return true;
             }
+
+            for (int n = 0; n < PRELOAD_SLICE && iter.hasNext() && !closed; n++) {
+                Frame frame = iter.next();
+                if (!frame.isLoaded()) frame.loadImage();
+            }
+            return closed || !iter.hasNext();
+        });
+    }
+
+    /**
+     * Lists the folder again after watch events were lost. Frames of files that are still there are kept, so only
+     * actual differences reach the timeline. Safe to call from any thread.
+     */
+    private void rescanFolder() {
+        ProjectSnapshot snapshot = state.getSnapshot();
+        File[] images = currentFolder.listFiles(Main.imageFilter);
+        if (images == null) return;
+
+        List<Frame> list = new ArrayList<>();
+        List<Frame> added = new ArrayList<>();
+        for (File file : images) {
+            Frame frame = snapshot.getFrame(file);
+            if (frame == null) {
+                frame = new Frame(file, defaultDelay);
+                added.add(frame);
+            }
+            list.add(frame);
         }
-        frames.sort(frameComparator);
-        refreshTimeline();
+
+        state.setFrames(list);
+        FxScheduler.get().submit(null, FxScheduler.Priority.LOW, () -> preloadImages(added, added));
+        Main.log.info("Rescanned folder: " + currentFolder.getAbsolutePath());
     }
 
     /**
      * @param folder Folder to watch for events.
      */
     private void setWatchFolder(File folder) {
-        if (watchKey != null) watchKey.cancel();
         try {
-            watchKey = folder.toPath().register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            WatchDispatcher.get().register(folder.toPath(), watchBackend, watchListener);
+            watching = true;
         } catch (IOException e) {
-            e.printStackTrace();
+            Main.log.log(Level.SEVERE, "Unable to watch folder: " + folder.getAbsolutePath(), e);
             Alert a = new Alert(Alert.AlertType.ERROR);
-            a.setTitle("Error registering WatchKey");
-            a.setContentText("Unable to register WatchKey: " + folder.getAbsolutePath());
+            a.setTitle("Error watching folder");
+            a.setContentText("Unable to watch folder: " + folder.getAbsolutePath());
             a.showAndWait();
+            return;
+        }
+
+        for (Layer layer : getLayers()) {
+            try {
+                WatchDispatcher.get().register(layer.getFolder().toPath(), watchBackend, watchListener);
+            } catch (IOException e) {
+                Main.log.log(Level.WARNING, "Unable to watch layer folder: " + layer.getFolder().getAbsolutePath(), e);
+            }
+        }
+    }
+
+    private void stopWatching() {
+        if (!watching) return;
+
+        WatchDispatcher.get().unregister(currentFolder.toPath(), watchListener);
+        for (Layer layer : getLayers()) {
+            WatchDispatcher.get().unregister(layer.getFolder().toPath(), watchListener);
         }
+        watching = false;
     }
 
     private void loadConfig() {
@@ -287,6 +809,31 @@ public class EditorController {
             JSONObject json = new JSONObject(String.join("\n", Files.readAllLines(currentFolder.toPath().resolve("animtoolproject.json"))));
 
             if (json.has("default-delay")) defaultDelay.set(json.getDouble("default-delay"));
+            if (json.has("layers-below")) {
+                JSONArray arr = json.getJSONArray("layers-below");
+                for (int i = arr.length() - 1; i >= 0; i--) {
+                    addLayerFromConfig(new File(arr.getString(i)), false);
+                }
+            }
+            if (json.has("layers-above")) {
+                JSONArray arr = json.getJSONArray("layers-above");
+                for (int i = 0; i < arr.length(); i++) {
+                    addLayerFromConfig(new File(arr.getString(i)), true);
+                }
+            }
+            if (json.has("watch-backend")) {
+                try {
+                    watchBackend = FolderWatcher.Backend.valueOf(json.getString("watch-backend").toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    Main.log.warning("Unknown watch backend in project config: " + json.getString("watch-backend"));
+                }
+            }
+            if (json.has("onion-skin-frames")) setOnionSkinFrames(json.getInt("onion-skin-frames"));
+            if (json.has("onion-skin")) onionSkinMenuItem.setSelected(json.getBoolean("onion-skin"));
+            if (json.has("integer-scaling")) setIntegerScaling(json.getBoolean("integer-scaling"));
+            if (json.has("ping-pong")) setPingPong(json.getBoolean("ping-pong"));
+            if (json.has("pause-in-background")) pauseInBackgroundMenuItem.setSelected(json.getBoolean("pause-in-background"));
+            if (json.has("loop-out")) setLoopRange(json.optInt("loop-in", 0), json.getInt("loop-out"));
             if (json.has("window-x")) rootPane.getScene().getWindow().setX(json.getInt("window-x"));
             if (json.has("window-y")) rootPane.getScene().getWindow().setY(json.getInt("window-y"));
             if (json.has("window-width")) rootPane.getScene().getWindow().setWidth(json.getInt("window-width"));
@@ -297,26 +844,52 @@ public class EditorController {
             // Get recent folders if present
             if (json.has("frames")) {
                 JSONArray arr = json.getJSONArray("frames");
+                ProjectSnapshot snapshot = state.getSnapshot();
+                List<Frame> targets = new ArrayList<>();
+                double[] delays = new double[arr.length()];
                 for (int i = 0; i < arr.length(); i++) {
                     JSONObject o = arr.getJSONObject(i);
 
-                    String name = o.getString("name");
-                    for (Frame frame : frames) {
-                        if (frame.getFile().getName().equals(name)) {
-                            frame.setDelay(o.getInt("delay"));
-                            break;
-                        }
+                    Frame frame = snapshot.getFrame(new File(currentFolder, o.getString("name")));
+                    if (frame != null) {
+                        delays[targets.size()] = o.getInt("delay");
+                        targets.add(frame);
                     }
                 }
+                state.setDelays(targets, delays);
             }
         } catch (IOException e) {
             Main.log.log(Level.WARNING, "Unable to read project config file", e);
         }
     }
 
+    private void addLayerFromConfig(File folder, boolean above) {
+        if (folder.isDirectory()) {
+            addLayer(folder, above);
+        } else {
+            Main.log.warning("Layer folder no longer exists: " + folder.getAbsolutePath());
+        }
+    }
+
     private void saveConfig() throws IOException {
         JSONObject json = new JSONObject();
         json.put("default-delay", defaultDelay.get());
+        json.put("watch-backend", watchBackend.name().toLowerCase());
+        for (Layer layer : layersBelow) {
+            json.append("layers-below", layer.getFolder().getAbsolutePath());
+        }
+        for (Layer layer : layersAbove) {
+            json.append("layers-above", layer.getFolder().getAbsolutePath());
+        }
+        json.put("integer-scaling", previewImageView.isIntegerScaling());
+        json.put("onion-skin", onionSkinMenuItem.isSelected());
+        json.put("onion-skin-frames", onionSkin.getSettings().getBefore());
+        json.put("ping-pong", playback.isPingPong());
+        json.put("pause-in-background", pauseInBackgroundMenuItem.isSelected());
+        if (loopOut >= 0) {
+            json.put("loop-in", loopIn);
+            json.put("loop-out", loopOut);
+        }
         json.put("window-x", rootPane.getScene().getWindow().getX());
         json.put("window-y", rootPane.getScene().getWindow().getY());
         json.put("window-width", rootPane.getScene().getWindow().getWidth());
@@ -336,110 +909,128 @@ public class EditorController {
     }
 
     private void close() {
+        closed = true;
         try {
             saveConfig();
         } catch (IOException e) {
             Main.log.log(Level.SEVERE, "Failed to save project config file", e);
         }
 
-        try {
-            watcher.close();
-        } catch (IOException e) {
-            Main.log.log(Level.SEVERE, "Failed to close filesystem watch service", e);
-        }
-        if (timeline.get() != null) timeline.get().stop();
+        if (exportTask != null) exportTask.cancel();
+        stopWatching();
+        compositor.close();
+        onionSkin.close();
+        ImageCache.get().release(currentFolder);
+        ImageCache.get().pin(this, List.of());
+        getLayers().forEach(layer -> ImageCache.get().release(layer.getFolder()));
+        playback.pause();
+        scrubSettle.stop();
+        timingHudTimeline.stop();
         ((Stage) rootPane.getScene().getWindow()).close();
     }
 
-    private void waitForImageToLoad(Image img, long timeout, TimeUnit timeUnit) {
-        if (img.isBackgroundLoading() && img.getProgress() != 1) {
-            CountDownLatch cdl = new CountDownLatch(1);
-            img.progressProperty().addListener((observable, oldValue, newValue) -> {
-                if (img.isError() || newValue.doubleValue() == 1) cdl.countDown();
-            });
-            try {
-                cdl.await(timeout, timeUnit);
-            } catch (InterruptedException ignore) {
+    private final FolderWatchListener watchListener = new FolderWatchListener() {
+        @Override
+        public void changesDetected(Path folder, List<FileChange> changes) {
+            Layer layer = findLayer(folder);
+            if (layer != null) {
+                layerChanged(layer, changes);
+                return;
+            }
+
+            for (FileChange change : changes) {
+                File file = change.getFile().toFile();
+                switch (change.getKind()) {
+                    case CREATED:
+                        fileCreated(file);
+                        break;
+                    case DELETED:
+                        fileDeleted(file);
+                        break;
+                    case MODIFIED:
+                        fileModified(file);
+                        break;
+                }
             }
         }
-    }
+
+        @Override
+        public void overflowed(Path folder) {
+            Main.log.warning("Watch events overflowed, rescanning: " + folder);
+
+            Layer layer = findLayer(folder);
+            if (layer != null) {
+                layer.load();
+                refreshLayers();
+            } else {
+                rescanFolder();
+            }
+        }
+    };
 
     /**
-     * Initializes the watch service on the current folder, listening for file events.
+     * Applies file changes to a layer and recomposites only what the changes affect.
+     *
+     * @param layer   Layer whose folder changed.
+     * @param changes Changes in the layer's folder.
      */
-    private void initWatchService() {
-        try {
-            watcher = FileSystems.getDefault().newWatchService();
-
-            Thread t = new Thread(() -> {
-                try {
-                    while (true) {
-                        WatchKey key = watcher.take();
-
-                        for (WatchEvent event : key.pollEvents()) {
-                            if (event.kind() == ENTRY_CREATE) {
-                                fileCreated(((Path) event.context()).toFile());
-                            } else if (event.kind() == ENTRY_DELETE) {
-                                fileDeleted(((Path) event.context()).toFile());
-                            } else if (event.kind() == ENTRY_MODIFY) {
-                                fileModified(((Path) event.context()).toFile());
-                            } else if (event.kind() == OVERFLOW) {
-                                Platform.runLater(() -> {
-                                    Alert a = new Alert(Alert.AlertType.ERROR);
-                                    a.setTitle("Error in WatchService");
-                                    a.setContentText("WatchService encountered OVERFLOW event!");
-                                    a.showAndWait();
-                                });
-                            }
-                        }
-
-                        key.reset();
+    private void layerChanged(Layer layer, List<FileChange> changes) {
+        boolean structural = false, modified = false;
+        for (FileChange change : changes) {
+            File file = change.getFile().toFile();
+            switch (change.getKind()) {
+                case CREATED:
+                    structural |= layer.fileCreated(file);
+                    break;
+                case DELETED:
+                    structural |= layer.fileDeleted(file);
+                    break;
+                case MODIFIED:
+                    invalidateCached(file);
+                    if (idle) {
+                        staleFiles.add(file);
+                    } else {
+                        modified |= layer.fileModified(file);
                     }
-                } catch (InterruptedException e) {
-                    Main.log.log(Level.WARNING, "Interrupted watch service", e);
-                } catch (ClosedWatchServiceException e) {
-                    Main.log.info("Watch service closed while waiting for watch key (expected)");
-                }
-            });
-            t.setDaemon(true);
-            t.start();
-        } catch (IOException e) {
-            Alert a = new Alert(Alert.AlertType.ERROR);
-            a.setTitle("Error creating WatchService");
-            a.setContentText(e.getLocalizedMessage());
-            a.showAndWait();
+                    break;
+            }
+        }
+
+        if (structural) {
+            refreshLayers();
+        } else if (modified) {
+            compositor.refresh();
         }
     }
 
     /**
-     * Refreshes the timeline object with current images.
+     * Hands the current frame delays to the playback engine. The frame on screen stays where it is.
      */
-    private void refreshTimeline() {
-        if (timeline.get() != null) {
-            timeline.get().stop();
-            timeline.set(null);
-        }
+    private void refreshPlayback() {
+        ProjectSnapshot snapshot = state.getSnapshot();
 
-        Timeline tl = new Timeline();
-        timeline.set(tl);
-        tl.setCycleCount(Animation.INDEFINITE);
+        double[] delays = new double[snapshot.size()];
+        for (int i = 0; i < delays.length; i++) {
+            delays[i] = snapshot.getComputedDelay(i);
+        }
+        playback.setDelays(delays);
+    }
 
-        int time = 0; // Time counter
-        for (int i = 0; i < frames.size(); i++) {
-            Frame frame = frames.get(i);
-            tl.getKeyFrames().add(new KeyFrame(Duration.millis(time), "Frame " + i, event -> {
-                timeLineListView.scrollTo(frame);
-                timeLineListView.getSelectionModel().select(frame);
-            }));
+    /**
+     * Hands the delays of a range of frames to the playback engine without touching the rest.
+     *
+     * @param from First changed frame index.
+     * @param to   Index after the last changed frame.
+     */
+    private void refreshPlayback(int from, int to) {
+        ProjectSnapshot snapshot = state.getSnapshot();
+        if (from >= to) return;
 
-            // Time has to be counted in a rolling manner
-            time += frame.getComputedDelay();
+        double[] delays = new double[to - from];
+        for (int i = from; i < to; i++) {
+            delays[i - from] = snapshot.getComputedDelay(i);
         }
-        // Event to display last keyframe for correct delay
-        tl.getKeyFrames().add(new KeyFrame(Duration.millis(time)));
-
-        if (playing.get()) tl.play();
-        else if (!frames.isEmpty()) previewImageView.setImage(frames.get(0).getImage());
+        playback.setDelays(from, delays);
     }
 
     private void showExportDialog() {
@@ -454,54 +1045,63 @@ public class EditorController {
             GifExportDialog d = new GifExportDialog(defaultDelay.get(), true, GifSequenceWriter.RESTORE_TO_BACKGROUND_DISPOSAL);
             Optional<GifExportConfig> result = d.showAndWait();
 
-            if (result.isPresent()) {
-                GifExportConfig config = result.get();
-
-                Map<Frame, BufferedImage> imgs = new HashMap<>();
-                for (Frame frame : frames) {
-                    Image img = frame.getImage();
-                    waitForImageToLoad(img, 30, TimeUnit.SECONDS);
-                    if (img.isError()) {
-                        Alert a = new Alert(Alert.AlertType.ERROR);
-                        a.setTitle("Error");
-                        a.setHeaderText("Error loading frame: " + frame.getFile());
-                        a.setContentText(img.getException().getLocalizedMessage());
-                        a.showAndWait();
-                        return;
-                    }
+            if (result.isPresent()) startExport(file, result.get());
+        }
+    }
 
-                    imgs.put(frame, SwingFXUtils.fromFXImage(img, null));
-                }
+    /**
+     * Exports the current frames in the background, with a progress window that can cancel the export.
+     *
+     * @param file   File to export to.
+     * @param config Export settings.
+     */
+    private void startExport(File file, GifExportConfig config) {
+        if (exportTask != null && exportTask.isRunning()) {
+            Alert a = new Alert(Alert.AlertType.INFORMATION);
+            a.setTitle("Export");
+            a.setHeaderText("An export is already running");
+            a.setContentText(exportTask.getTarget().getAbsolutePath());
+            a.showAndWait();
+            return;
+        }
 
-                try (ImageOutputStream ios = ImageIO.createImageOutputStream(file)) {
-                    GifSequenceWriter gsw = new GifSequenceWriter(ios, imgs.get(frames.get(0)).getType(), config.delay, config.loop, config.disposal);
+        // Layers and frames are captured now, so edits made while exporting don't mix into the GIF
+        ProjectSnapshot snapshot = state.getSnapshot();
+        List<Frame> frames = snapshot.getFrames();
+        List<Layer> below = layersBelow, above = layersAbove;
+        IntFunction<Image> source;
+        if (below.isEmpty() && above.isEmpty()) {
+            source = i -> GifExportTask.decode(frames.get(i));
+        } else {
+            LayerCompositor.Stack stack = new LayerCompositor.Stack(layerStack(below, above, frames), below.size());
+            source = stack::composite;
+        }
+        GifExportTask task = new GifExportTask(file, config, snapshot, source);
+        exportTask = task;
+
+        task.setOnSucceeded(event -> {
+            Alert a = new Alert(Alert.AlertType.INFORMATION);
+            a.setTitle("Success");
+            a.setHeaderText("Successfully exported GIF");
+            a.setContentText(file.getAbsolutePath() + "\n\n" + task.getReport());
+            a.show();
+        });
+        task.setOnCancelled(event -> Main.log.info("Cancelled GIF export: " + file.getAbsolutePath()));
+        task.setOnFailed(event -> {
+            Main.log.log(Level.SEVERE, "Failed to export GIF", task.getException());
 
-                    for (Frame frame : frames) {
-                        if (frame.getDelay() > 0) {
-                            gsw.writeToSequence(imgs.get(frame), (int) frame.getDelay());
-                        } else {
-                            gsw.writeToSequence(imgs.get(frame));
-                        }
-                    }
+            Alert a = new Alert(Alert.AlertType.ERROR);
+            a.setTitle("FAILED");
+            a.setHeaderText("Exception while attempting to export GIF");
+            a.setContentText(task.getException().getLocalizedMessage());
+            a.show();
+        });
 
-                    gsw.close();
-
-                    Alert a = new Alert(Alert.AlertType.INFORMATION);
-                    a.setTitle("Success");
-                    a.setHeaderText("Successfully exported GIF");
-                    a.setContentText(file.getAbsolutePath());
-                    a.showAndWait();
-                } catch (IOException e) {
-                    Main.log.log(Level.SEVERE, "Unable to create GIF writer", e);
-
-                    Alert a = new Alert(Alert.AlertType.INFORMATION);
-                    a.setTitle("FAILED");
-                    a.setHeaderText("Exception while attempting to export GIF");
-                    a.setContentText(e.getLocalizedMessage());
-                    a.showAndWait();
-                }
-            }
-        }
+        new GifExportProgressDialog(task, rootPane.getScene().getWindow()).show();
+
+        Thread thread = new Thread(task, "GIF export");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     private void openProjectsStage() {
@@ -515,48 +1115,51 @@ public class EditorController {
     /**
      * Called when a file modification event is captured.
      *
-     * @param file File that was modified.
+     * @param file Absolute path of the file that was modified.
      */
     private void fileModified(File file) {
-        String path = currentFolder.getAbsolutePath();
-        if (!path.endsWith("/")) path += "/";
-        path += file.getName();
-        Frame tmp = new Frame(new File(path), defaultDelay);
-        if (frames.contains(tmp)) {
-            frames.get(frames.indexOf(tmp)).loadImage();
+        invalidateCached(file);
+        if (idle) {
+            staleFiles.add(file);
+            Main.log.fine("File modified while idle: " + file);
+            return;
         }
-        Main.log.info("File modified: " + path);
+
+        Frame frame = state.getSnapshot().getFrame(file);
+        if (frame != null && frame.reloadIfChanged()) {
+            compositor.refresh();
+            onionSkin.refresh();
+            Platform.runLater(() -> {
+                // Patched images change in place, so resampled copies of them are stale
+                previewImageView.invalidate(frame.getImage());
+                refreshZoom();
+            });
+        }
+        Main.log.info("File modified: " + file);
     }
 
     /**
      * Called when a file deletion event is captured.
      *
-     * @param file File that was deleted.
+     * @param file Absolute path of the file that was deleted.
      */
     private void fileDeleted(File file) {
-        String path = currentFolder.getAbsolutePath();
-        if (!path.endsWith("/")) path += "/";
-        path += file.getName();
-        frames.remove(new Frame(new File(path), defaultDelay));
-        refreshTimeline();
-        Main.log.info("File deleted: " + path);
+        state.removeFrame(file);
+        ImageCache.get().remove(file);
+        Platform.runLater(() -> ThumbnailAtlas.get().remove(file));
+        Main.log.info("File deleted: " + file);
     }
 
     /**
      * Called when a file creation event is captured.
      *
-     * @param file File that was created.
+     * @param file Absolute path of the file that was created.
      */
     private void fileCreated(File file) {
-        String path = currentFolder.getAbsolutePath();
-        if (!path.endsWith("/")) path += "/";
-        path += file.getName();
-        if (Main.imageFilter.accept(new File(path).getParentFile(), file.getName())) {
-            frames.add(new Frame(new File(path), defaultDelay));
-            frames.sort(frameComparator);
-            refreshTimeline();
+        if (Main.imageFilter.accept(file.getParentFile(), file.getName())) {
+            state.addFrame(new Frame(file, defaultDelay));
         }
-        Main.log.info("File created: " + path);
+        Main.log.info("File created: " + file);
     }
 
     public void playButtonOnAction(ActionEvent event) {
@@ -588,16 +1191,16 @@ public class EditorController {
     }
 
     public void leftButtonOnAction(ActionEvent event) {
-        int i = timeLineListView.getSelectionModel().getSelectedIndex();
+        int i = playhead.get();
         if (i > 0) {
-            timeLineListView.getSelectionModel().select(i - 1);
+            seek(i - 1);
         }
     }
 
     public void rightButtonOnAction(ActionEvent event) {
-        int i = timeLineListView.getSelectionModel().getSelectedIndex();
-        if (i < timeLineListView.getItems().size() - 1) {
-            timeLineListView.getSelectionModel().select(i + 1);
+        int i = playhead.get();
+        if (i < frames.size() - 1) {
+            seek(i + 1);
         }
     }
 
@@ -610,7 +1213,78 @@ public class EditorController {
     }
 
     public void previewImageViewMouseClicked(MouseEvent event) {
-        playing.set(!playing.get());
+        // Releasing a pan shouldn't toggle playback
+        if (event.isStillSincePress()) playing.set(!playing.get());
+    }
+
+    /**
+     * Zooms the preview around the cursor. Zooming in past the fitted size switches the preview to tiles decoded from
+     * the frame's file, zooming back out to the fitted size switches back.
+     */
+    public void previewOnScroll(ScrollEvent event) {
+        if (event.getDeltaY() == 0 || previewImageView.getDisplayWidth() <= 0) return;
+        double factor = event.getDeltaY() > 0 ? 1.25 : 0.8;
+        double fit = previewImageView.getFitWidth() / previewImageView.getDisplayWidth();
+
+        if (!zoomed) {
+            if (factor < 1) return;
+
+            ProjectSnapshot snapshot = state.getSnapshot();
+            int i = playhead.get();
+            if (i < 0 || i >= snapshot.size()) return;
+
+            zoomed = true;
+            zoomTo(snapshot, i);
+            zoomView.setView(fit, previewImageView.getDisplayWidth() / 2, previewImageView.getDisplayHeight() / 2);
+            zoomView.setVisible(true);
+            previewImageView.setVisible(false);
+        } else if (zoomView.getZoom() * factor <= fit) {
+            fitToWindow();
+            event.consume();
+            return;
+        }
+
+        zoomView.zoomAt(factor, event.getX(), event.getY());
+        event.consume();
+    }
+
+    public void previewOnMousePressed(MouseEvent event) {
+        dragX = event.getX();
+        dragY = event.getY();
+    }
+
+    public void previewOnMouseDragged(MouseEvent event) {
+        if (zoomed) zoomView.pan(event.getX() - dragX, event.getY() - dragY);
+        dragX = event.getX();
+        dragY = event.getY();
+    }
+
+    private void fitToWindow() {
+        zoomed = false;
+        zoomView.setVisible(false);
+        zoomView.setFile(null, 0);
+        previewImageView.setVisible(true);
+    }
+
+    /**
+     * Shows the latest version of the frame under the playhead while zoomed in.
+     */
+    private void refreshZoom() {
+        ProjectSnapshot snapshot = state.getSnapshot();
+        int i = playhead.get();
+        if (zoomed && i >= 0 && i < snapshot.size()) zoomTo(snapshot, i);
+    }
+
+    /**
+     * Shows a frame in the zoom view, keyed on the modification time in the snapshot's file columns, so moving the
+     * playhead never stats a file on the FX thread. Snapshots with refreshed columns call {@link #refreshZoom()}.
+     */
+    private void zoomTo(ProjectSnapshot snapshot, int index) {
+        zoomView.setFile(snapshot.getFrames().get(index).getFile(), snapshot.getLastModified(index));
+    }
+
+    public void menuBarFitToWindowOnAction(ActionEvent event) {
+        fitToWindow();
     }
 
     public void menuBarCloseOnAction(ActionEvent event) {
@@ -630,9 +1304,113 @@ public class EditorController {
         showExportDialog();
     }
 
+    public void menuBarAddLayerBelowOnAction(ActionEvent event) {
+        chooseLayerFolder(false);
+    }
+
+    public void menuBarAddLayerAboveOnAction(ActionEvent event) {
+        chooseLayerFolder(true);
+    }
+
+    public void menuBarRemoveLayersOnAction(ActionEvent event) {
+        removeLayers();
+    }
+
+    private void chooseLayerFolder(boolean above) {
+        DirectoryChooser dc = new DirectoryChooser();
+        dc.setTitle(above ? "Add Layer Above" : "Add Layer Below");
+        if (currentFolder.getParentFile() != null) dc.setInitialDirectory(currentFolder.getParentFile());
+        File folder = dc.showDialog(rootPane.getScene().getWindow());
+
+        if (folder != null) {
+            addLayer(folder, above);
+            refreshLayers();
+        }
+    }
+
     public void menuBarDefaultsOnAction(ActionEvent event) {
-        frames.forEach(frame -> frame.setDelay(-1));
-        defaultDelay.set(DEFAULT_DELAY);
+        state.editDelays(() -> {
+            state.resetDelays();
+            defaultDelay.set(DEFAULT_DELAY);
+        });
+    }
+
+    public void menuBarPauseInBackgroundOnAction(ActionEvent event) {
+        updateIdle();
+    }
+
+    public void menuBarIntegerScalingOnAction(ActionEvent event) {
+        setIntegerScaling(integerScalingMenuItem.isSelected());
+    }
+
+    /**
+     * @param integerScaling True to scale the preview by whole factors without smoothing, for pixel art.
+     */
+    private void setIntegerScaling(boolean integerScaling) {
+        integerScalingMenuItem.setSelected(integerScaling);
+        previewImageView.setIntegerScaling(integerScaling);
+    }
+
+    public void menuBarOnionSkinOnAction(ActionEvent event) {
+        showPlayhead();
+    }
+
+    public void menuBarOnionSkinFramesOnAction(ActionEvent event) {
+        setOnionSkinFrames(Integer.parseInt((String) ((RadioMenuItem) event.getSource()).getUserData()));
+        if (onionSkinMenuItem.isSelected()) showPlayhead();
+    }
+
+    /**
+     * @param count Number of frames to ghost on each side of the current frame.
+     */
+    private void setOnionSkinFrames(int count) {
+        OnionSkin.Settings current = onionSkin.getSettings();
+        onionSkin.setSettings(new OnionSkin.Settings(count, count, current.getOpacity()));
+
+        for (Toggle toggle : onionSkinFramesGroup.getToggles()) {
+            if (String.valueOf(count).equals(toggle.getUserData())) toggle.setSelected(true);
+        }
+    }
+
+    public void menuBarLoopInOnAction(ActionEvent event) {
+        int i = playhead.get();
+        if (i < 0) return;
+        setLoopRange(i, loopOut >= i ? loopOut : Math.max(i, frames.size() - 1));
+    }
+
+    public void menuBarLoopOutOnAction(ActionEvent event) {
+        int i = playhead.get();
+        if (i < 0) return;
+        setLoopRange(loopOut >= 0 && loopIn <= i ? loopIn : 0, i);
+    }
+
+    public void menuBarClearLoopOnAction(ActionEvent event) {
+        setLoopRange(0, -1);
+    }
+
+    public void menuBarPingPongOnAction(ActionEvent event) {
+        setPingPong(pingPongMenuItem.isSelected());
+    }
+
+    /**
+     * @param pingPong True to play the loop forwards then backwards.
+     */
+    private void setPingPong(boolean pingPong) {
+        pingPongMenuItem.setSelected(pingPong);
+        playback.setPingPong(pingPong);
+    }
+
+    public void menuBarTimingOverlayOnAction(ActionEvent event) {
+        setTimingOverlay(timingOverlayMenuItem.isSelected());
+    }
+
+    public void menuBarLogTimingOnAction(ActionEvent event) {
+        Main.log.info(playbackStats.getReport());
+    }
+
+    public void menuBarResetTimingOnAction(ActionEvent event) {
+        playbackStats.reset();
+        if (timingOverlayMenuItem.isSelected()) updateTimingHud();
     }
 
     public void menuBarAboutOnAction(ActionEvent event) {
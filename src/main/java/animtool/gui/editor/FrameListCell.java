@@ -28,6 +28,9 @@ package animtool.gui.editor;
 import animtool.animation.Frame;
 import animtool.gui.Main;
 import animtool.gui.media.DynamicImageView;
+import animtool.service.ThumbnailAtlas;
+import animtool.service.ThumbnailLoader;
+import javafx.beans.InvalidationListener;
 import javafx.beans.value.ChangeListener;
 import javafx.scene.control.Label;
 import javafx.scene.control.MenuItem;
@@ -52,7 +55,19 @@ public class FrameListCell extends ListCell<Frame> {
     private final TextField delayTextField = new TextField();
     private BorderPane topBorderPane;
 
-    private final ChangeListener<Number> delayListener = (observable, oldValue, newValue) -> updateItemUtil(getItem());
+    /**
+     * Frame whose listeners and thumbnail request this cell currently holds.
+     */
+    private Frame boundItem = null;
+    private ThumbnailLoader.Request<?> thumbnailRequest = null;
+    private ThumbnailAtlas.Slot thumbnailSlot = null;
+
+    private final InvalidationListener delayListener = observable -> updateDelayLabel();
+    private final ChangeListener<Number> ownDelayListener = (observable, oldValue, newValue) -> updateDelayLabel();
+    private final InvalidationListener evictionListener = observable -> {
+        // The atlas page was reused for other thumbnails
+        if (thumbnailSlot != null && !thumbnailSlot.isValid()) requestThumbnail(boundItem);
+    };
 
 
     FrameListCell() {
@@ -122,35 +137,90 @@ public class FrameListCell extends ListCell<Frame> {
 
     @Override
     protected void updateItem(Frame item, boolean empty) {
-        if (getItem() != null) {
-            getItem().defaultDelayProperty().removeListener(delayListener);
-            getItem().delayProperty().removeListener(delayListener);
+        super.updateItem(item, empty);
+        if (empty) item = null;
+
+        // Cells are reused constantly while scrolling, only rebind when the frame actually changes
+        if (item != boundItem) bind(item);
+
+        if (item != null) {
+            indexLabel.setText(Integer.toString(getIndex()));
+            topBorderPane.setRight(delayLabel);
+            updateDelayLabel();
+        } else {
+            indexLabel.setText(null);
+            topBorderPane.setRight(null);
         }
+    }
 
-        super.updateItem(item, empty);
+    /**
+     * Moves this cell's listeners and thumbnail request to another frame. A thumbnail still queued for the previous
+     * frame is cancelled, so frames that were scrolled past are never decoded.
+     */
+    private void bind(Frame item) {
+        if (boundItem != null) {
+            boundItem.defaultDelayProperty().removeListener(delayListener);
+            boundItem.removeDelayListener(ownDelayListener);
+        }
+
+        boundItem = item;
+
+        if (item != null) {
+            item.defaultDelayProperty().addListener(delayListener);
+            item.addDelayListener(ownDelayListener);
+        }
+        requestThumbnail(item);
+    }
+
+    private void requestThumbnail(Frame item) {
+        if (thumbnailRequest != null) {
+            thumbnailRequest.cancel();
+            thumbnailRequest = null;
+        }
+        showThumbnail(null);
 
-        imageView.setImage(null);
-        indexLabel.setText(null);
-        topBorderPane.setRight(null);
         if (item != null) {
-            imageView.setImage(item.getThumbnail());
-            indexLabel.setText(getIndex() + "");
+            thumbnailRequest = item.requestThumbnail(slot -> {
+                thumbnailRequest = null;
+                if (boundItem == item) showThumbnail(slot);
+            });
+        }
+    }
 
-            topBorderPane.setRight(delayLabel);
-            if (item.getDelay() < 1) {
-                delayLabel.setText(String.format("%.2fms", item.getDefaultDelay()));
-                delayLabel.getStyleClass().remove(CUSTOM_DELAY_LABEL_STYLE_CLASS);
-                item.defaultDelayProperty().addListener(delayListener);
-            } else {
-                delayLabel.setText(String.format("%.2fms", item.getDelay()));
-                if (!delayLabel.getStyleClass().contains(CUSTOM_DELAY_LABEL_STYLE_CLASS)) delayLabel.getStyleClass().add(CUSTOM_DELAY_LABEL_STYLE_CLASS);
-                item.delayProperty().addListener(delayListener);
-            }
+    private void showThumbnail(ThumbnailAtlas.Slot slot) {
+        if (thumbnailSlot != null) thumbnailSlot.invalidation().removeListener(evictionListener);
+        thumbnailSlot = slot;
+
+        if (slot != null) {
+            slot.invalidation().addListener(evictionListener);
+            imageView.setImage(slot.getImage());
+            imageView.setViewport(slot.getViewport());
+        } else {
+            imageView.setImage(null);
+            imageView.setViewport(null);
+        }
+    }
+
+    private void updateDelayLabel() {
+        Frame item = boundItem;
+        if (item == null) return;
+
+        if (item.getDelay() < 1) {
+            delayLabel.setText(formatDelay(item.getDefaultDelay()));
+            delayLabel.getStyleClass().remove(CUSTOM_DELAY_LABEL_STYLE_CLASS);
+        } else {
+            delayLabel.setText(formatDelay(item.getDelay()));
+            if (!delayLabel.getStyleClass().contains(CUSTOM_DELAY_LABEL_STYLE_CLASS)) delayLabel.getStyleClass().add(CUSTOM_DELAY_LABEL_STYLE_CLASS);
         }
     }
 
-    private void updateItemUtil(Frame item) {
-        updateItem(item, false);
+    /**
+     * Formats a delay with two decimals. Called for every cell update, so avoids {@link String#format}.
+     */
+    private static String formatDelay(double delay) {
+        long hundredths = Math.round(delay * 100);
+        long fraction = hundredths % 100;
+        return (hundredths / 100) + (fraction < 10 ? ".0" : ".") + fraction + "ms";
     }
 
 }
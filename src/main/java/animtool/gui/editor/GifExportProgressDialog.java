@@ -0,0 +1,63 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.gui.editor;
+
+import javafx.scene.control.*;
+import javafx.scene.layout.VBox;
+import javafx.stage.Modality;
+import javafx.stage.Window;
+
+/**
+ * Non-modal window showing the progress of a {@link GifExportTask}, so the editor stays usable during the export.
+ * Closing it cancels the export. It closes itself when the export ends.
+ */
+class GifExportProgressDialog extends Dialog<Void> {
+
+    GifExportProgressDialog(GifExportTask task, Window owner) {
+        initOwner(owner);
+        initModality(Modality.NONE);
+        setTitle("Exporting GIF");
+
+        ProgressBar progressBar = new ProgressBar();
+        progressBar.setPrefWidth(300);
+        progressBar.progressProperty().bind(task.progressProperty());
+
+        Label messageLabel = new Label();
+        messageLabel.setWrapText(true);
+        messageLabel.textProperty().bind(task.messageProperty());
+
+        VBox vBox = new VBox(5, new Label(task.getTarget().getAbsolutePath()), progressBar, messageLabel);
+        getDialogPane().setContent(vBox);
+        getDialogPane().getButtonTypes().add(new ButtonType("Cancel", ButtonBar.ButtonData.CANCEL_CLOSE));
+
+        setOnCloseRequest(event -> {
+            if (task.isRunning()) task.cancel();
+        });
+        task.runningProperty().addListener((observable, oldValue, newValue) -> {
+            if (!newValue) close();
+        });
+    }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.gui.editor;
+
+import animtool.animation.Frame;
+import animtool.animation.ProjectSnapshot;
+import animtool.export.GifEncoder;
+import animtool.export.GifFrame;
+import animtool.export.GifFrameEncoder;
+import animtool.export.GifSequenceWriter;
+import animtool.gui.Main;
+import javafx.concurrent.Task;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * Exports a snapshot of the project as a GIF on background threads.
+ * <p>
+ * The export is a streaming pipeline: frames are decoded, converted, quantized and compressed by a small pool of
+ * workers, each with its own reusable {@link GifFrameEncoder}, and the encoded frames are written in order by the
+ * task's thread through a buffered file channel. At most {@link #WINDOW} frames are in flight no matter how long the
+ * animation is, so a slow writer holds back the workers while they all still run in parallel.
+ * <p>
+ * The message reports, while exporting, how many frames each stage has finished and the time it spent on them, overall
+ * throughput and an estimate of the time left. The GIF is written to
+ * a partial file next to the target, which replaces the target only once the export succeeded and is deleted
+ * otherwise.
+ */
+class GifExportTask extends Task<File> {
+
+    enum Stage {
+        DECODE("Decoding"), CONVERT("Converting"), QUANTIZE("Quantizing"), ENCODE("Encoding"), WRITE("Writing");
+
+        private final String verb;
+
+        Stage(String verb) {
+            this.verb = verb;
+        }
+    }
+
+    private static final int WORKERS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 2));
+    /**
+     * Frames encoded ahead of the writer at most.
+     */
+    private static final int WINDOW = WORKERS * 2;
+
+    private final File target;
+    private final GifExportConfig config;
+    private final ProjectSnapshot snapshot;
+    private final IntFunction<Image> source;
+
+    private final ThreadLocal<GifFrameEncoder> encoders = ThreadLocal.withInitial(GifFrameEncoder::new);
+    private final AtomicLong[] stageNanos = new AtomicLong[Stage.values().length];
+    private final AtomicInteger[] stageFrames = new AtomicInteger[Stage.values().length];
+    private volatile long bytesWritten = 0;
+    private volatile long started = 0;
+    private volatile int framesWritten = 0;
+
+
+    /**
+     * @param target   File to export to.
+     * @param config   Export settings.
+     * @param snapshot Frames and delays to export.
+     * @param source   Supplies the image of a frame index, called concurrently on worker threads.
+     */
+    GifExportTask(File target, GifExportConfig config, ProjectSnapshot snapshot, IntFunction<Image> source) {
+        this.target = target;
+        this.config = config;
+        this.snapshot = snapshot;
+        this.source = source;
+        Arrays.setAll(stageNanos, i -> new AtomicLong());
+        Arrays.setAll(stageFrames, i -> new AtomicInteger());
+    }
+
+    /**
+     * Gets a frame's decoded image for export without waiting on the FX thread. An image the frame or the cache already
+     * decoded is reused, otherwise the file is decoded on the calling thread without keeping the result in the frame.
+     *
+     * @param frame Frame to decode.
+     * @return The image, possibly in an error state.
+     */
+    static Image decode(Frame frame) {
+        return frame.decodeNow(false);
+    }
+
+    File getTarget() {
+        return target;
+    }
+
+    @Override
+    protected File call() throws Exception {
+        File partial = new File(target.getParentFile(), target.getName() + ".part");
+        started = System.nanoTime();
+        int count = snapshot.size();
+        int disposal = GifSequenceWriter.getDisposalCode(config.disposal);
+
+        ExecutorService workers = Executors.newFixedThreadPool(WORKERS, r -> {
+            Thread t = new Thread(r, "GIF export worker");
+            t.setDaemon(true);
+            return t;
+        });
+        boolean done = false;
+
+        try (GifEncoder encoder = GifEncoder.open(partial, config.loop ? GifEncoder.LOOP_FOREVER : 1)) {
+            Deque<Future<GifFrame>> ahead = new ArrayDeque<>();
+            int next = 0;
+
+            for (int i = 0; i < count; i++) {
+                // Keep the window full, never more
+                while (next < count && next < i + WINDOW) {
+                    int index = next++;
+                    ahead.add(workers.submit(() -> prepare(index)));
+                }
+
+                if (isCancelled()) return null;
+                report(count);
+
+                GifFrame frame;
+                try {
+                    frame = ahead.poll().get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+
+                long t = System.nanoTime();
+                int delay = snapshot.getDelay(i) > 0 ? (int) snapshot.getDelay(i) : config.delay;
+                encoder.writeFrame(frame, delay, disposal);
+                lap(Stage.WRITE, t);
+                bytesWritten = encoder.getBytesWritten();
+
+                framesWritten = i + 1;
+                updateProgress(framesWritten, count);
+            }
+
+            long t = System.nanoTime();
+            encoder.finish();
+            stageNanos[Stage.WRITE.ordinal()].addAndGet(System.nanoTime() - t);
+            bytesWritten = encoder.getBytesWritten();
+            done = true;
+        } finally {
+            workers.shutdownNow();
+            if (!done) Files.deleteIfExists(partial.toPath());
+        }
+
+        Files.move(partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        updateMessage(getReport());
+        Main.log.info("Exported GIF: " + target.getAbsolutePath() + "\n" + getReport());
+        return target;
+    }
+
+    /**
+     * Decodes, converts, quantizes and compresses one frame. Runs on a worker thread.
+     */
+    private GifFrame prepare(int index) throws IOException {
+        long t = System.nanoTime();
+        Image img = source.apply(index);
+        if (img == null || img.isError()) {
+            Exception e = img == null ? null : img.getException();
+            throw new IOException("Error loading frame: " + snapshot.getFrames().get(index).getFile()
+                    + (e == null ? "" : " (" + e.getLocalizedMessage() + ")"), e);
+        }
+        t = lap(Stage.DECODE, t);
+
+        GifFrameEncoder encoder = encoders.get();
+        int w = (int) img.getWidth(), h = (int) img.getHeight();
+        int[] pixels = encoder.getPixelBuffer(w * h);
+        img.getPixelReader().getPixels(0, 0, w, h, PixelFormat.getIntArgbInstance(), pixels, 0, w);
+        t = lap(Stage.CONVERT, t);
+
+        encoder.quantize(pixels, w, h);
+        t = lap(Stage.QUANTIZE, t);
+
+        GifFrame frame = encoder.compress();
+        lap(Stage.ENCODE, t);
+        report(snapshot.size());
+        return frame;
+    }
+
+    /**
+     * Adds the time since a start to a stage and counts one more frame through it.
+     *
+     * @return The current time, to start the next stage from.
+     */
+    private long lap(Stage stage, long start) {
+        long now = System.nanoTime();
+        stageNanos[stage.ordinal()].addAndGet(now - start);
+        stageFrames[stage.ordinal()].incrementAndGet();
+        return now;
+    }
+
+    /**
+     * Updates the message with the running progress of every stage. Called by the workers and the writer, the task
+     * coalesces the updates into one per pulse.
+     */
+    private void report(int count) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Written %d of %d frames", framesWritten, count));
+
+        double elapsed = (System.nanoTime() - started) / 1e9;
+        int written = framesWritten;
+        if (written > 0 && elapsed > 0) {
+            double fps = written / elapsed;
+            sb.append(String.format(", %.1f frames/s, %.1f MB, about %s left", fps, bytesWritten / 1048576.0, formatTime((count - written) / fps)));
+        }
+        appendStages(sb);
+        updateMessage(sb.toString());
+    }
+
+    /**
+     * Appends a line per stage with its frames done, time spent and time per frame. Stage times of the workers add up
+     * across threads.
+     */
+    private void appendStages(StringBuilder sb) {
+        for (Stage stage : Stage.values()) {
+            int frames = stageFrames[stage.ordinal()].get();
+            double seconds = stageNanos[stage.ordinal()].get() / 1e9;
+            sb.append(String.format("%n%s: %d frames, %.1fs", stage.verb, frames, seconds));
+            if (frames > 0) sb.append(String.format(" (%.1f ms/frame)", seconds * 1000 / frames));
+        }
+    }
+
+    /**
+     * @return Time spent in each stage and overall throughput so far. Stage times of the workers add up across threads.
+     */
+    String getReport() {
+        double elapsed = Math.max(1e-9, (System.nanoTime() - started) / 1e9);
+        long bytes = bytesWritten;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d frames in %s (%.1f frames/s), %.1f MB (%.1f MB/s)", framesWritten, formatTime(elapsed),
+                framesWritten / elapsed, bytes / 1048576.0, bytes / 1048576.0 / elapsed));
+        appendStages(sb);
+        return sb.toString();
+    }
+
+    private static String formatTime(double seconds) {
+        long s = Math.round(seconds);
+        return String.format("%d:%02d", s / 60, s % 60);
+    }
+
+}
@@ -24,14 +24,77 @@
 
 package animtool.gui.media;
 
+import animtool.service.DecodePool;
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.beans.value.ChangeListener;
+import javafx.geometry.Rectangle2D;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.image.WritableImage;
+import javafx.util.Duration;
 
+import java.util.*;
+
+/**
+ * An image view that resizes with its parent, never scaling the image up past its own size unless integer scaling is
+ * enabled.
+ * <p>
+ * With prescaling enabled, every image shown is resampled in the background to the exact pixel size it is displayed
+ * at and the resampled copy is shown instead, so only viewport sized textures are drawn. Resampled copies are cached
+ * until the view size changes, and are rebuilt once resizing has stopped.
+ */
 public class DynamicImageView extends ImageView {
 
+    /**
+     * Time the view size has to stay unchanged before images are resampled to the new size.
+     */
+    private static final Duration PRESCALE_SETTLE = Duration.millis(200);
+    /**
+     * Budget for resampled images per view, in bytes.
+     */
+    private static final long PRESCALE_BUDGET = Runtime.getRuntime().maxMemory() / 8;
+
+    /**
+     * Size to lay out at while showing a proxy image, or -1 to use the image's own size.
+     */
+    private double displayWidth = -1, displayHeight = -1;
+    private boolean settingProxy = false;
+
+    /**
+     * Image set by the caller. The view may show a resampled copy of it instead.
+     */
+    private Image source = null;
+    private boolean showingCopy = false;
+    private boolean swapping = false;
+
+    private boolean prescale = false;
+    private boolean integerScaling = false;
+    private int targetWidth = 0, targetHeight = 0;
+    /**
+     * Resampled copies by source image. Keys are weak so a source only this view still knows about can be collected,
+     * whatever the budget: the budget only covers the copies.
+     */
+    private final Map<Image, Prescaled> prescaled = new WeakHashMap<>();
+    private long prescaledTick = 0;
+    private final Set<Image> queued = Collections.newSetFromMap(new WeakHashMap<>());
+    /**
+     * Source image still loading that is prescaled once it finishes, or null.
+     */
+    private Image awaitingLoad = null;
+    private final ChangeListener<Number> loadListener = (observable, oldValue, newValue) -> {
+        if (newValue.doubleValue() >= 1) {
+            stopAwaitingLoad();
+            showPrescaled();
+        }
+    };
+    private int cacheGeneration = 0;
+    private final PauseTransition settle = new PauseTransition(PRESCALE_SETTLE);
+
 
     public DynamicImageView() {
         super();
+        init();
     }
 
     public DynamicImageView(String path, boolean backgroundLoading) {
@@ -44,6 +107,108 @@ public class DynamicImageView extends ImageView {
 
     public DynamicImageView(Image img) {
         super(img);
+        source = img;
+        init();
+    }
+
+    private void init() {
+        imageProperty().addListener((observable, oldValue, newValue) -> {
+            if (swapping) return;
+
+            showingCopy = false;
+            source = newValue;
+            stopAwaitingLoad();
+            if (!settingProxy) {
+                displayWidth = displayHeight = -1;
+                setViewport(null);
+            }
+            showPrescaled();
+        });
+        settle.setOnFinished(event -> showPrescaled());
+    }
+
+    /**
+     * Shows a stand-in image, such as a thumbnail, laid out as if it were an image of a different size.
+     *
+     * @param proxy    Image to show.
+     * @param viewport Area of the proxy to show, or null for all of it.
+     * @param width    Width of the image the proxy stands in for.
+     * @param height   Height of the image the proxy stands in for.
+     */
+    public void setProxyImage(Image proxy, Rectangle2D viewport, double width, double height) {
+        settingProxy = true;
+        displayWidth = width;
+        displayHeight = height;
+        setViewport(viewport);
+        setImage(proxy);
+        settingProxy = false;
+        if (getParent() != null) getParent().requestLayout();
+    }
+
+    /**
+     * @return The image last set on this view, which may be shown through a resampled copy.
+     */
+    public Image getSourceImage() {
+        return source;
+    }
+
+    public boolean isPrescale() {
+        return prescale;
+    }
+
+    /**
+     * @param prescale True to show images resampled to their exact display size.
+     */
+    public void setPrescale(boolean prescale) {
+        this.prescale = prescale;
+        clearPrescaled();
+        if (prescale) showPrescaled();
+    }
+
+    public boolean isIntegerScaling() {
+        return integerScaling;
+    }
+
+    /**
+     * @param integerScaling True to only scale by whole factors with nearest neighbour sampling, for pixel art.
+     */
+    public void setIntegerScaling(boolean integerScaling) {
+        this.integerScaling = integerScaling;
+        setSmooth(!integerScaling);
+        clearPrescaled();
+        if (getParent() != null) getParent().requestLayout();
+    }
+
+    /**
+     * Drops the resampled copy of an image whose pixels were changed in place, and resamples it again if it is shown.
+     *
+     * @param img Changed image.
+     */
+    public void invalidate(Image img) {
+        if (prescaled.remove(img) == null) return;
+
+        if (img == source) {
+            show(source);
+            showPrescaled();
+        }
+    }
+
+    /**
+     * @return Width the current image is laid out at, or 0 if there is no image.
+     */
+    public double getDisplayWidth() {
+        if (displayWidth > 0) return displayWidth;
+        if (getViewport() != null) return getViewport().getWidth();
+        return source == null ? 0 : source.getWidth();
+    }
+
+    /**
+     * @return Height the current image is laid out at, or 0 if there is no image.
+     */
+    public double getDisplayHeight() {
+        if (displayHeight > 0) return displayHeight;
+        if (getViewport() != null) return getViewport().getHeight();
+        return source == null ? 0 : source.getHeight();
     }
 
     @Override
@@ -55,7 +220,7 @@ public class DynamicImageView extends ImageView {
     public double prefWidth(double height) {
         Image I = getImage();
         if (I == null) return minWidth(height);
-        return I.getWidth();
+        return getDisplayWidth();
     }
 
     @Override
@@ -72,7 +237,7 @@ public class DynamicImageView extends ImageView {
     public double prefHeight(double width) {
         Image I = getImage();
         if (I == null) return minHeight(width);
-        return I.getHeight();
+        return getDisplayHeight();
     }
 
     @Override
@@ -91,13 +256,150 @@ public class DynamicImageView extends ImageView {
             setFitWidth(width);
             setFitHeight(height);
         } else {
+            double w = getDisplayWidth(), h = getDisplayHeight();
             double scale = 1;
-            if (scale * getImage().getWidth() > width) scale = width / getImage().getWidth();
-            if (scale * getImage().getHeight() > height) scale = height / getImage().getHeight();
+            if (scale * w > width) scale = width / w;
+            if (scale * h > height) scale = height / h;
+
+            if (integerScaling && w > 0 && h > 0) {
+                double fit = Math.min(width / w, height / h);
+                scale = fit >= 1 ? Math.floor(fit) : 1 / Math.ceil(1 / fit);
+            }
+
+            setFitWidth(w * scale);
+            setFitHeight(h * scale);
+        }
+
+        updateTarget();
+    }
+
+    /**
+     * Tracks the size images are drawn at in device pixels. A new size drops all resampled copies and waits for
+     * resizing to settle before resampling again.
+     */
+    private void updateTarget() {
+        if (!prescale) return;
+
+        double outputScale = getScene() != null && getScene().getWindow() != null ? getScene().getWindow().getOutputScaleX() : 1;
+        int w = (int) Math.round(getFitWidth() * outputScale), h = (int) Math.round(getFitHeight() * outputScale);
+        if (w == targetWidth && h == targetHeight) return;
+
+        targetWidth = w;
+        targetHeight = h;
+        clearPrescaled();
+        settle.playFromStart();
+    }
+
+    private void clearPrescaled() {
+        prescaled.clear();
+        queued.clear();
+        stopAwaitingLoad();
+        cacheGeneration++;
+        if (showingCopy) show(source);
+    }
+
+    /**
+     * Shows the resampled copy of the source image if there is one, otherwise queues resampling and shows the source.
+     */
+    private void showPrescaled() {
+        if (!canPrescale()) return;
+
+        Prescaled copy = prescaled.get(source);
+        if (copy != null) {
+            copy.lastUsed = ++prescaledTick;
+            show(copy.image);
+        } else if (settle.getStatus() != PauseTransition.Status.RUNNING) {
+            queuePrescale(source);
+        }
+    }
+
+    private boolean canPrescale() {
+        return prescale && source != null && displayWidth < 0 && getViewport() == null && targetWidth > 0 && targetHeight > 0;
+    }
+
+    private void queuePrescale(Image img) {
+        if (img.isError()) return;
+        if (img.getProgress() < 1) {
+            // Try again once it has loaded
+            if (awaitingLoad != img) {
+                stopAwaitingLoad();
+                awaitingLoad = img;
+                img.progressProperty().addListener(loadListener);
+            }
+            return;
+        }
+        if (img.getPixelReader() == null) return;
+
+        int w = targetWidth, h = targetHeight;
+        boolean nearest = integerScaling;
+        int sw = (int) img.getWidth(), sh = (int) img.getHeight();
+        // Area averaging only shrinks, images shown at or above their own size are drawn as they are
+        if (w == sw && h == sh || !nearest && (w >= sw || h >= sh)) return;
+        if (!queued.add(img)) return;
+
+        int generation = cacheGeneration;
+        DecodePool.submit(() -> {
+            WritableImage copy = Resampler.resample(img, w, h, nearest);
+            Platform.runLater(() -> {
+                if (generation != cacheGeneration) return;
 
-            setFitWidth(getImage().getWidth() * scale);
-            setFitHeight(getImage().getHeight() * scale);
+                queued.remove(img);
+                store(img, copy);
+                if (img == source && canPrescale()) show(copy);
+            });
+        });
+    }
+
+    private void stopAwaitingLoad() {
+        if (awaitingLoad == null) return;
+
+        awaitingLoad.progressProperty().removeListener(loadListener);
+        awaitingLoad = null;
+    }
+
+    private void store(Image img, Image copy) {
+        prescaled.put(img, new Prescaled(copy, ++prescaledTick));
+
+        // Copies of collected sources are already gone, so the total is summed from what is left
+        long bytes = 0;
+        for (Prescaled p : prescaled.values()) {
+            bytes += p.bytes;
+        }
+        while (bytes > PRESCALE_BUDGET && !prescaled.isEmpty()) {
+            Map.Entry<Image, Prescaled> oldest = null;
+            for (Map.Entry<Image, Prescaled> e : prescaled.entrySet()) {
+                if (oldest == null || e.getValue().lastUsed < oldest.getValue().lastUsed) oldest = e;
+            }
+            bytes -= oldest.getValue().bytes;
+            prescaled.remove(oldest.getKey());
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * Shows an image without changing the source image.
+     */
+    private void show(Image img) {
+        showingCopy = img != source;
+        if (getImage() == img) return;
+
+        swapping = true;
+        setImage(img);
+        swapping = false;
+    }
+
+    private static final class Prescaled {
+
+        final Image image;
+        final long bytes;
+        long lastUsed;
+
+
+        Prescaled(Image image, long lastUsed) {
+            this.image = image;
+            this.bytes = (long) image.getWidth() * (long) image.getHeight() * 4;
+            this.lastUsed = lastUsed;
+        }
+
+    }
+
+}
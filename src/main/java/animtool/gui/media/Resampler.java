@@ -0,0 +1,116 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.gui.media;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.image.WritablePixelFormat;
+
+import java.nio.IntBuffer;
+
+/**
+ * Resamples images to an exact pixel size with plain loops over premultiplied ARGB, so it can run on any thread.
+ */
+final class Resampler {
+
+    private static final WritablePixelFormat<IntBuffer> FORMAT = PixelFormat.getIntArgbPreInstance();
+
+
+    private Resampler() {
+    }
+
+    /**
+     * @param src     Fully loaded source image.
+     * @param width   Target width in pixels.
+     * @param height  Target height in pixels.
+     * @param nearest True for nearest neighbour, false to average the covered area (only suited for downscaling).
+     * @return The resampled image.
+     */
+    static WritableImage resample(Image src, int width, int height, boolean nearest) {
+        int sw = (int) src.getWidth(), sh = (int) src.getHeight();
+        int[] in = new int[sw * sh];
+        src.getPixelReader().getPixels(0, 0, sw, sh, FORMAT, in, 0, sw);
+
+        int[] out = nearest ? nearest(in, sw, sh, width, height) : areaAverage(in, sw, sh, width, height);
+
+        WritableImage img = new WritableImage(width, height);
+        img.getPixelWriter().setPixels(0, 0, width, height, FORMAT, out, 0, width);
+        return img;
+    }
+
+    private static int[] nearest(int[] in, int sw, int sh, int tw, int th) {
+        // Sample at pixel centres so integer factors map every source pixel to an equal block
+        int[] xs = new int[tw];
+        for (int x = 0; x < tw; x++) {
+            xs[x] = (int) ((2L * x + 1) * sw / (2L * tw));
+        }
+
+        int[] out = new int[tw * th];
+        for (int y = 0; y < th; y++) {
+            int row = (int) ((2L * y + 1) * sh / (2L * th)) * sw;
+            int o = y * tw;
+            for (int x = 0; x < tw; x++) {
+                out[o + x] = in[row + xs[x]];
+            }
+        }
+
+        return out;
+    }
+
+    private static int[] areaAverage(int[] in, int sw, int sh, int tw, int th) {
+        int[] x0 = new int[tw], x1 = new int[tw];
+        for (int x = 0; x < tw; x++) {
+            x0[x] = (int) ((long) x * sw / tw);
+            x1[x] = Math.max(x0[x] + 1, (int) ((long) (x + 1) * sw / tw));
+        }
+
+        int[] out = new int[tw * th];
+        for (int y = 0; y < th; y++) {
+            int y0 = (int) ((long) y * sh / th);
+            int y1 = Math.max(y0 + 1, (int) ((long) (y + 1) * sh / th));
+
+            for (int x = 0; x < tw; x++) {
+                long a = 0, r = 0, g = 0, b = 0;
+                for (int sy = y0; sy < y1; sy++) {
+                    int row = sy * sw;
+                    for (int sx = x0[x]; sx < x1[x]; sx++) {
+                        int p = in[row + sx];
+                        a += p >>> 24;
+                        r += (p >> 16) & 0xff;
+                        g += (p >> 8) & 0xff;
+                        b += p & 0xff;
+                    }
+                }
+
+                long n = (long) (x1[x] - x0[x]) * (y1 - y0);
+                out[y * tw + x] = (int) (a / n) << 24 | (int) (r / n) << 16 | (int) (g / n) << 8 | (int) (b / n);
+            }
+        }
+
+        return out;
+    }
+
+}
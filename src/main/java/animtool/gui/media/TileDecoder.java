@@ -0,0 +1,109 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.gui.media;
+
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.Image;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Reads image sizes and single tiles of an image file through ImageIO source regions, so only the requested area is
+ * ever held in memory.
+ */
+final class TileDecoder {
+
+    private TileDecoder() {
+    }
+
+    /**
+     * @param file Image file.
+     * @return Width and height of the image, read from its header.
+     * @throws IOException If the file can't be read by ImageIO.
+     */
+    static int[] readSize(File file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = reader(file, in);
+            try {
+                return new int[]{reader.getWidth(0), reader.getHeight(0)};
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Decodes one tile of one pyramid level.
+     *
+     * @param file     Image file.
+     * @param level    Pyramid level, where level n is subsampled by 2^n.
+     * @param column   Tile column within the level.
+     * @param row      Tile row within the level.
+     * @param tileSize Tile size in level pixels.
+     * @return The tile, smaller than the tile size at the right and bottom edges.
+     * @throws IOException If the file can't be read by ImageIO.
+     */
+    static Image decode(File file, int level, int column, int row, int tileSize) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = reader(file, in);
+            try {
+                int scale = 1 << level;
+                int x = column * tileSize * scale, y = row * tileSize * scale;
+                int w = Math.min(tileSize * scale, reader.getWidth(0) - x);
+                int h = Math.min(tileSize * scale, reader.getHeight(0) - y);
+                if (w <= 0 || h <= 0) throw new IOException("Tile outside of image: " + file.getAbsolutePath());
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(x, y, w, h));
+                param.setSourceSubsampling(scale, scale, 0, 0);
+                BufferedImage tile = reader.read(0, param);
+
+                return SwingFXUtils.toFXImage(tile, null);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static ImageReader reader(File file, ImageInputStream in) throws IOException {
+        if (in == null) throw new IOException("Unable to open image: " + file.getAbsolutePath());
+
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) throw new IOException("No image reader for: " + file.getAbsolutePath());
+
+        ImageReader reader = readers.next();
+        reader.setInput(in, true, true);
+        return reader;
+    }
+
+}
@@ -0,0 +1,284 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.gui.media;
+
+import animtool.gui.Main;
+import animtool.service.DecodePool;
+import animtool.service.TileCache;
+import javafx.application.Platform;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.Region;
+import javafx.scene.shape.Rectangle;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.logging.Level;
+
+/**
+ * Shows a zoomed and panned region of an image file from a tiled multi-resolution pyramid.
+ * <p>
+ * Level n of the pyramid is the image subsampled by 2^n, cut into square tiles. Only tiles of the level matching the
+ * zoom that intersect the visible region are decoded, each on its own through an ImageIO source region, and kept in
+ * the shared {@link TileCache}. While a tile is decoding, the best coarser tile already cached is stretched in its
+ * place. Tiles that scroll out of view before their decode starts are skipped.
+ */
+public class TiledImageView extends Region {
+
+    private static final int TILE_SIZE = 512;
+    private static final double MAX_ZOOM = 32;
+
+    private File file = null;
+    private long modified = 0;
+    private int imageWidth = 0, imageHeight = 0;
+    private int levels = 1;
+    private int sizeGeneration = 0;
+
+    private double zoom = 1;
+    private double centerX = 0, centerY = 0;
+
+    /**
+     * Tiles needed for the current view. Read by decode tasks to skip tiles that are no longer visible.
+     */
+    private volatile Set<TileCache.Key> wanted = Set.of();
+    private final Set<TileCache.Key> requested = new HashSet<>();
+    private final List<ImageView> views = new ArrayList<>();
+
+
+    public TiledImageView() {
+        Rectangle clip = new Rectangle();
+        clip.widthProperty().bind(widthProperty());
+        clip.heightProperty().bind(heightProperty());
+        setClip(clip);
+    }
+
+    /**
+     * Shows another image file, keeping the zoom and position if it has the same size. Never touches the disk on the
+     * calling thread, the caller says which version of the file to show.
+     *
+     * @param file     Image file, or null to show nothing.
+     * @param modified Modification time of the file as last recorded by the caller. Tiles are cached per file and
+     *                 modification time, so passing a new time shows the file's new content.
+     */
+    public void setFile(File file, long modified) {
+        if (file == null) modified = 0;
+        if (Objects.equals(file, this.file) && modified == this.modified) return;
+
+        this.file = file;
+        this.modified = modified;
+        requested.clear();
+        requestLayout();
+        if (file == null) return;
+
+        int generation = ++sizeGeneration;
+        DecodePool.submit(() -> {
+            try {
+                int[] size = TileDecoder.readSize(file);
+                Platform.runLater(() -> {
+                    if (generation != sizeGeneration) return;
+                    setImageSize(size[0], size[1]);
+                });
+            } catch (IOException e) {
+                Main.log.log(Level.WARNING, "Unable to read image size: " + file.getAbsolutePath(), e);
+            }
+        });
+    }
+
+    private void setImageSize(int width, int height) {
+        if (width != imageWidth || height != imageHeight) {
+            imageWidth = width;
+            imageHeight = height;
+            levels = 1;
+            while (Math.max(width, height) > TILE_SIZE << (levels - 1)) levels++;
+            centerX = Math.min(centerX, width);
+            centerY = Math.min(centerY, height);
+        }
+        requestLayout();
+    }
+
+    /**
+     * @return Screen pixels per image pixel.
+     */
+    public double getZoom() {
+        return zoom;
+    }
+
+    /**
+     * Sets the zoom and the image point shown at the center of the view.
+     *
+     * @param zoom    Screen pixels per image pixel.
+     * @param centerX Image x coordinate.
+     * @param centerY Image y coordinate.
+     */
+    public void setView(double zoom, double centerX, double centerY) {
+        this.zoom = Math.min(MAX_ZOOM, zoom);
+        this.centerX = centerX;
+        this.centerY = centerY;
+        requestLayout();
+    }
+
+    /**
+     * Zooms while keeping the image point under a view position in place.
+     *
+     * @param factor Zoom multiplier.
+     * @param x      View x coordinate.
+     * @param y      View y coordinate.
+     */
+    public void zoomAt(double factor, double x, double y) {
+        double ix = centerX + (x - getWidth() / 2) / zoom, iy = centerY + (y - getHeight() / 2) / zoom;
+        zoom = Math.min(MAX_ZOOM, zoom * factor);
+        centerX = ix - (x - getWidth() / 2) / zoom;
+        centerY = iy - (y - getHeight() / 2) / zoom;
+        requestLayout();
+    }
+
+    /**
+     * Moves the image by a distance in view coordinates.
+     */
+    public void pan(double dx, double dy) {
+        centerX = Math.max(0, Math.min(imageWidth, centerX - dx / zoom));
+        centerY = Math.max(0, Math.min(imageHeight, centerY - dy / zoom));
+        requestLayout();
+    }
+
+    @Override
+    protected void layoutChildren() {
+        int used = 0;
+
+        if (file != null && imageWidth > 0 && imageHeight > 0) {
+            double outputScale = getScene() != null && getScene().getWindow() != null ? getScene().getWindow().getOutputScaleX() : 1;
+            int level = (int) Math.floor(Math.log(1 / (zoom * outputScale)) / Math.log(2));
+            level = Math.max(0, Math.min(level, levels - 1));
+            int scale = 1 << level;
+            double span = (double) TILE_SIZE * scale;
+
+            double left = centerX - getWidth() / 2 / zoom, top = centerY - getHeight() / 2 / zoom;
+            double right = left + getWidth() / zoom, bottom = top + getHeight() / zoom;
+            int c0 = Math.max(0, (int) Math.floor(left / span)), c1 = Math.min((int) Math.ceil(imageWidth / span) - 1, (int) Math.floor(right / span));
+            int r0 = Math.max(0, (int) Math.floor(top / span)), r1 = Math.min((int) Math.ceil(imageHeight / span) - 1, (int) Math.floor(bottom / span));
+
+            Set<TileCache.Key> want = new HashSet<>();
+            // Placeholders first, so exact tiles are drawn over them
+            for (boolean placeholders : new boolean[]{true, false}) {
+                for (int r = r0; r <= r1; r++) {
+                    for (int c = c0; c <= c1; c++) {
+                        TileCache.Key key = new TileCache.Key(file, modified, level, c, r);
+                        double x = c * span, y = r * span;
+                        double w = Math.min(span, imageWidth - x), h = Math.min(span, imageHeight - y);
+
+                        Image tile = TileCache.get().get(key);
+                        if (placeholders && tile == null) {
+                            want.add(key);
+                            used = placeCoarser(used, level, c, r, x, y, w, h, left, top);
+                        } else if (!placeholders && tile != null) {
+                            used = place(used, tile, null, x, y, w, h, left, top);
+                        }
+                    }
+                }
+            }
+            wanted = want;
+            want.forEach(this::request);
+        } else {
+            wanted = Set.of();
+        }
+
+        for (int i = used; i < views.size(); i++) {
+            views.get(i).setVisible(false);
+            views.get(i).setImage(null);
+        }
+    }
+
+    /**
+     * Stretches the part of the nearest cached coarser tile that covers a missing tile over its area.
+     */
+    private int placeCoarser(int used, int level, int column, int row, double x, double y, double w, double h, double left, double top) {
+        for (int l = level + 1; l < levels; l++) {
+            int factor = 1 << (l - level);
+            int pc = column / factor, pr = row / factor;
+            Image parent = TileCache.get().get(new TileCache.Key(file, modified, l, pc, pr));
+            if (parent == null) continue;
+
+            int scale = 1 << l;
+            double vx = x / scale - pc * TILE_SIZE, vy = y / scale - pr * TILE_SIZE;
+            double vw = Math.min(w / scale, parent.getWidth() - vx), vh = Math.min(h / scale, parent.getHeight() - vy);
+            if (vw <= 0 || vh <= 0) return used;
+
+            return place(used, parent, new Rectangle2D(vx, vy, vw, vh), x, y, w, h, left, top);
+        }
+        return used;
+    }
+
+    private int place(int used, Image img, Rectangle2D viewport, double x, double y, double w, double h, double left, double top) {
+        ImageView view;
+        if (used < views.size()) {
+            view = views.get(used);
+        } else {
+            view = new ImageView();
+            view.setSmooth(false);
+            views.add(view);
+            getChildren().add(view);
+        }
+
+        view.setImage(img);
+        view.setViewport(viewport);
+        // Snap edges to whole pixels so neighbouring tiles don't leave seams
+        double sx = Math.floor((x - left) * zoom), sy = Math.floor((y - top) * zoom);
+        view.setLayoutX(sx);
+        view.setLayoutY(sy);
+        view.setFitWidth(Math.ceil((x + w - left) * zoom) - sx);
+        view.setFitHeight(Math.ceil((y + h - top) * zoom) - sy);
+        view.setVisible(true);
+
+        return used + 1;
+    }
+
+    private void request(TileCache.Key key) {
+        if (!requested.add(key)) return;
+
+        File file = this.file;
+        DecodePool.submit(() -> {
+            // Scrolled out of view while queued
+            if (!wanted.contains(key)) {
+                Platform.runLater(() -> requested.remove(key));
+                return;
+            }
+
+            try {
+                TileCache.get().put(key, TileDecoder.decode(file, key.getLevel(), key.getColumn(), key.getRow(), TILE_SIZE));
+            } catch (IOException e) {
+                Main.log.log(Level.WARNING, "Unable to decode tile of " + file.getAbsolutePath(), e);
+                return;
+            }
+
+            Platform.runLater(() -> {
+                requested.remove(key);
+                requestLayout();
+            });
+        });
+    }
+
+}
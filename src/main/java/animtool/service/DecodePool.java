@@ -0,0 +1,131 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.service;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide pool for decoding, hashing and compositing work shared by all open editors.
+ * <p>
+ * Tasks are served by priority. Thumbnails come first and newest first, so the cells bound last, which are the ones on
+ * screen after a scroll, are decoded before anything scrolled past. Everything else runs in submission order.
+ */
+public final class DecodePool {
+
+    public enum Priority {
+        /**
+         * Thumbnails of visible cells, served newest first.
+         */
+        THUMBNAIL,
+        NORMAL
+    }
+
+    private static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final AtomicLong sequence = new AtomicLong();
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), r -> {
+        Thread t = new Thread(r, "Decode Pool " + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        t.setPriority(Thread.NORM_PRIORITY - 1);
+        return t;
+    });
+
+
+    private DecodePool() {
+    }
+
+    public static Future<?> submit(Runnable task) {
+        return submit(Priority.NORMAL, task);
+    }
+
+    public static <T> Future<T> submit(Callable<T> task) {
+        return execute(new Task<>(task, Priority.NORMAL));
+    }
+
+    public static Future<?> submit(Priority priority, Runnable task) {
+        return execute(new Task<>(Executors.callable(task), priority));
+    }
+
+    /**
+     * Cancels a task and removes it from the queue if it hasn't started, so it doesn't wait its turn to do nothing. A
+     * task that already started is not interrupted.
+     *
+     * @param task Task returned by one of the submit methods.
+     */
+    public static void cancel(Future<?> task) {
+        task.cancel(false);
+        if (task instanceof Runnable) executor.remove((Runnable) task);
+    }
+
+    /**
+     * @return Approximate number of tasks waiting or running in the pool.
+     */
+    public static int getQueueDepth() {
+        return executor.getQueue().size() + executor.getActiveCount();
+    }
+
+    /**
+     * @return Number of threads in the pool.
+     */
+    public static int getThreadCount() {
+        return THREADS;
+    }
+
+    private static <T> Task<T> execute(Task<T> task) {
+        executor.execute(task);
+        return task;
+    }
+
+    private static final class Task<T> extends FutureTask<T> implements Comparable<Task<?>> {
+
+        private final Priority priority;
+        private final long order;
+
+
+        Task(Callable<T> callable, Priority priority) {
+            super(callable);
+            this.priority = priority;
+            long n = sequence.incrementAndGet();
+            this.order = priority == Priority.THUMBNAIL ? -n : n;
+        }
+
+        @Override
+        public int compareTo(Task<?> o) {
+            int c = priority.compareTo(o.priority);
+            return c != 0 ? c : Long.compare(order, o.order);
+        }
+
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.service;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs UI-side work on the FX application thread in slices that fit a per-pulse time budget, so bulk work never holds
+ * up rendering or input for long.
+ * <p>
+ * Tasks run in priority order. A task submitted with the key of a task that hasn't run yet replaces it in place, so
+ * repeated requests for the same work coalesce. Sliced tasks are stepped repeatedly, one step at a time, across as
+ * many pulses as they need. At least one step runs every pulse, so a single oversized step still makes progress.
+ */
+public final class FxScheduler {
+
+    public enum Priority {
+        /**
+         * Work the user is waiting to see, like applying frame list changes.
+         */
+        HIGH,
+        NORMAL,
+        /**
+         * Work nobody is waiting for, like warming caches.
+         */
+        LOW
+    }
+
+    /**
+     * Time spent on scheduled work per pulse, leaving the rest of a 60Hz frame for layout and rendering.
+     */
+    private static final long BUDGET_NANOS = 6_000_000;
+
+    private static final FxScheduler instance = new FxScheduler();
+
+    private final Queue<Task> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean startQueued = new AtomicBoolean(false);
+
+    /**
+     * Pending tasks of each priority by key, in submission order. Only touched on the FX application thread.
+     */
+    private final List<LinkedHashMap<Object, Task>> queues = new ArrayList<>();
+    private boolean running = false;
+
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            runSlice();
+        }
+    };
+
+
+    private FxScheduler() {
+        for (int i = 0; i < Priority.values().length; i++) {
+            queues.add(new LinkedHashMap<>());
+        }
+    }
+
+    public static FxScheduler get() {
+        return instance;
+    }
+
+    /**
+     * Queues a task to run once. Safe to call from any thread.
+     *
+     * @param key      Tasks with an equal key coalesce, only the latest runs. Null to never coalesce.
+     * @param priority Priority of the task.
+     * @param task     Task to run on the FX application thread.
+     */
+    public void submit(Object key, Priority priority, Runnable task) {
+        submitSliced(key, priority, () -> {
+            task.run();
+            return true;
+        });
+    }
+
+    /**
+     * Queues a task that is stepped until it is done. Each step should do a small, bounded amount of work. Safe to
+     * call from any thread.
+     *
+     * @param key      Tasks with an equal key coalesce, only the latest runs. Null to never coalesce.
+     * @param priority Priority of the task.
+     * @param step     Does the next chunk of work on the FX application thread, returning true once all work is done.
+     */
+    public void submitSliced(Object key, Priority priority, BooleanSupplier step) {
+        inbox.add(new Task(key == null ? new Object() : key, priority, step));
+
+        if (Platform.isFxApplicationThread()) {
+            start();
+        } else if (startQueued.compareAndSet(false, true)) {
+            Platform.runLater(() -> {
+                startQueued.set(false);
+                start();
+            });
+        }
+    }
+
+    private void start() {
+        if (!running) {
+            running = true;
+            timer.start();
+        }
+    }
+
+    private void runSlice() {
+        long deadline = System.nanoTime() + BUDGET_NANOS;
+
+        do {
+            Task task;
+            while ((task = inbox.poll()) != null) {
+                queues.get(task.priority.ordinal()).put(task.key, task);
+            }
+
+            task = next();
+            if (task == null) {
+                running = false;
+                timer.stop();
+                return;
+            }
+
+            Map<Object, Task> queue = queues.get(task.priority.ordinal());
+            queue.remove(task.key);
+            boolean done = task.step.getAsBoolean();
+            // Unfinished tasks go to the back of their priority, unless replaced while stepping
+            if (!done) queue.putIfAbsent(task.key, task);
+        } while (System.nanoTime() < deadline);
+    }
+
+    private Task next() {
+        for (LinkedHashMap<Object, Task> queue : queues) {
+            if (!queue.isEmpty()) return queue.values().iterator().next();
+        }
+        return null;
+    }
+
+    private static class Task {
+
+        final Object key;
+        final Priority priority;
+        final BooleanSupplier step;
+
+
+        Task(Object key, Priority priority, BooleanSupplier step) {
+            this.key = key;
+            this.priority = priority;
+            this.step = step;
+        }
+
+    }
+
+}
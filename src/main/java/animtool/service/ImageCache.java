@@ -0,0 +1,359 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.service;
+
+import animtool.animation.ContentFingerprint;
+import animtool.gui.Main;
+import javafx.scene.image.Image;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Process-wide, memory-budgeted cache of decoded frame images keyed by absolute file path.
+ * <p>
+ * Editors acquire the folders they show and release them when closed. Entries of released folders stay cached until
+ * the memory budget needs their space, so reopening a recently closed project does not decode anything that hasn't
+ * changed on disk. Acquired folders are watched, and editors report changed files through {@link #validate(File)}, so
+ * lookups never touch the disk. Entries of a folder that was not acquired by anyone are checked against the file's
+ * size and modification time once, when the folder is acquired again. Thumbnails are kept by {@link ThumbnailAtlas}.
+ * <p>
+ * Images can also be pinned, for example the frames of a loop range under review. Pinned entries are evicted only
+ * once nothing else is left to evict.
+ * <p>
+ * The budget is enforced on everything that holds cached images, not just on the cache's own references. Frames
+ * register as {@link Holder}s of the entries whose images they use and let go of them when the entry is evicted, so
+ * evicting actually frees the pixels unless a view is still showing them.
+ */
+public final class ImageCache {
+
+    private static final ImageCache instance = new ImageCache();
+
+    /**
+     * Budget for decoded pixels held by the cache and its holders, a quarter of the maximum heap.
+     */
+    private final long budget = Runtime.getRuntime().maxMemory() / 4;
+
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<Path, Integer> folderRefs = new HashMap<>();
+    private final Map<Object, Set<Path>> pins = new HashMap<>();
+    private final Map<String, Image> resources = new HashMap<>();
+    private final AtomicBoolean trimQueued = new AtomicBoolean(false);
+
+
+    private ImageCache() {
+    }
+
+    public static ImageCache get() {
+        return instance;
+    }
+
+    /**
+     * Marks a folder as in use by an editor. Entries of in-use folders are evicted last. If nobody had the folder
+     * acquired, its files weren't watched, so its entries are checked against the disk once.
+     *
+     * @param folder Folder to acquire.
+     * @return True if nobody had the folder acquired before.
+     */
+    public boolean acquire(File folder) {
+        Path path = folder.toPath().toAbsolutePath();
+        List<Path> check = new ArrayList<>();
+        synchronized (this) {
+            if (folderRefs.merge(path, 1, Integer::sum) > 1) return false;
+            for (Path p : entries.keySet()) {
+                if (path.equals(p.getParent())) check.add(p);
+            }
+        }
+
+        for (Path p : check) {
+            validate(p.toFile());
+        }
+        return true;
+    }
+
+    /**
+     * Releases a folder previously acquired. Its entries stay cached until space is needed.
+     *
+     * @param folder Folder to release.
+     */
+    public synchronized void release(File folder) {
+        folderRefs.computeIfPresent(folder.toPath().toAbsolutePath(), (k, v) -> v > 1 ? v - 1 : null);
+    }
+
+    /**
+     * Pins the images of a set of files, replacing the files previously pinned by the same owner.
+     *
+     * @param owner Owner of the pins, typically an editor.
+     * @param files Files to pin, empty to unpin all of the owner's files.
+     */
+    public synchronized void pin(Object owner, Collection<File> files) {
+        if (files.isEmpty()) {
+            pins.remove(owner);
+            return;
+        }
+
+        Set<Path> paths = new HashSet<>();
+        for (File file : files) {
+            paths.add(file.toPath().toAbsolutePath());
+        }
+        pins.put(owner, paths);
+    }
+
+    /**
+     * Gets a cached image without touching the disk. Entries of changed files are dropped by {@link #validate(File)}.
+     *
+     * @param file Image file.
+     * @return The cached entry, or null.
+     */
+    public synchronized Entry get(File file) {
+        return entries.get(file.toPath().toAbsolutePath());
+    }
+
+    /**
+     * Drops the entry of a file if the file's size or modification time no longer match it. Called for files that
+     * changed on disk, off the FX application thread.
+     *
+     * @param file Image file.
+     */
+    public void validate(File file) {
+        Path path = file.toPath().toAbsolutePath();
+        long size = file.length(), modified = file.lastModified();
+
+        synchronized (this) {
+            Entry e = entries.get(path);
+            if (e != null && (e.size != size || e.modified != modified)) entries.remove(path);
+        }
+    }
+
+    /**
+     * Caches an image. The size and modification time must have been read before decoding started.
+     *
+     * @param file     Image file.
+     * @param image    Decoded, or still decoding, image.
+     * @param size     File size when decoding started.
+     * @param modified File modification time when decoding started.
+     * @return The new entry.
+     */
+    public Entry put(File file, Image image, long size, long modified) {
+        Entry e = new Entry(image, size, modified);
+        synchronized (this) {
+            Entry old = entries.put(file.toPath().toAbsolutePath(), e);
+            // Refreshed for a new modification time, the same holders still use the image
+            if (old != null && old.image == image) {
+                synchronized (old.holders) {
+                    e.holders.addAll(old.holders);
+                }
+            }
+        }
+        queueTrim();
+        return e;
+    }
+
+    /**
+     * Removes an entry, for example when the file was deleted.
+     *
+     * @param file Image file.
+     */
+    public synchronized void remove(File file) {
+        entries.remove(file.toPath().toAbsolutePath());
+    }
+
+    /**
+     * Removes an entry only if it still holds a specific image, for example when that image's decode was cancelled.
+     *
+     * @param file  Image file.
+     * @param image Image the entry must hold.
+     */
+    public synchronized void remove(File file, Image image) {
+        Path path = file.toPath().toAbsolutePath();
+        Entry e = entries.get(path);
+        if (e != null && e.image == image) entries.remove(path);
+    }
+
+    /**
+     * Gets an application resource image, loading it once for the whole process.
+     *
+     * @param ref      Class to resolve the resource against.
+     * @param resource Resource path.
+     * @return The shared image.
+     */
+    public synchronized Image getResource(Class<?> ref, String resource) {
+        return resources.computeIfAbsent(resource, r -> new Image(Objects.requireNonNull(ref.getResource(r)).toString()));
+    }
+
+    private void queueTrim() {
+        if (trimQueued.compareAndSet(false, true)) {
+            DecodePool.submit(() -> {
+                trimQueued.set(false);
+                trim();
+            });
+        }
+    }
+
+    /**
+     * Evicts least recently used entries until the cache fits its budget, starting with entries of released folders,
+     * then in-use folders, then pinned images. Holders of evicted entries are told outside the lock.
+     */
+    private void trim() {
+        List<Entry> evicted = new ArrayList<>();
+        synchronized (this) {
+            long total = 0;
+            for (Entry e : entries.values()) {
+                total += e.getBytes();
+            }
+            if (total <= budget) return;
+
+            Set<Path> pinned = new HashSet<>();
+            for (Set<Path> paths : pins.values()) {
+                pinned.addAll(paths);
+            }
+
+            long before = total;
+            for (int tier = 0; tier < 3; tier++) {
+                Iterator<Map.Entry<Path, Entry>> iter = entries.entrySet().iterator();
+                while (total > budget && iter.hasNext()) {
+                    Map.Entry<Path, Entry> e = iter.next();
+                    if (evictionTier(e.getKey(), pinned) != tier) continue;
+
+                    total -= e.getValue().getBytes();
+                    evicted.add(e.getValue());
+                    iter.remove();
+                }
+            }
+
+            Main.log.fine(String.format("Trimmed image cache from %.1fMB to %.1fMB", before / 1048576.0, total / 1048576.0));
+        }
+
+        for (Entry e : evicted) {
+            e.evicted();
+        }
+    }
+
+    private int evictionTier(Path path, Set<Path> pinned) {
+        if (pinned.contains(path)) return 2;
+        return folderRefs.containsKey(path.getParent()) ? 1 : 0;
+    }
+
+    /**
+     * Uses a cached image outside the cache and lets go of it when its entry is evicted.
+     */
+    public interface Holder {
+
+        /**
+         * Called on a background thread when the entry of an image this holder registered for was evicted.
+         *
+         * @param image The evicted image.
+         */
+        void evicted(Image image);
+
+    }
+
+    public static class Entry {
+
+        private final Image image;
+        private final long size, modified;
+        private volatile ContentFingerprint fingerprint = null;
+        /**
+         * Held weakly, so a closed editor's frames don't stay reachable through the cache.
+         */
+        private final List<WeakReference<Holder>> holders = new ArrayList<>();
+
+
+        private Entry(Image image, long size, long modified) {
+            this.image = image;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        public Image getImage() {
+            return image;
+        }
+
+        /**
+         * @return File size when the image started decoding.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return File modification time when the image started decoding.
+         */
+        public long getModified() {
+            return modified;
+        }
+
+        /**
+         * @return Fingerprint of the content the image was decoded from, or null if not known.
+         */
+        public ContentFingerprint getFingerprint() {
+            return fingerprint;
+        }
+
+        public void setFingerprint(ContentFingerprint fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        /**
+         * Registers something that uses this entry's image, to be told when the entry is evicted.
+         *
+         * @param holder Holder to register. Registering twice does nothing.
+         */
+        public void hold(Holder holder) {
+            synchronized (holders) {
+                holders.removeIf(ref -> ref.get() == null);
+                for (WeakReference<Holder> ref : holders) {
+                    if (ref.get() == holder) return;
+                }
+                holders.add(new WeakReference<>(holder));
+            }
+        }
+
+        private void evicted() {
+            List<Holder> list = new ArrayList<>();
+            synchronized (holders) {
+                for (WeakReference<Holder> ref : holders) {
+                    Holder h = ref.get();
+                    if (h != null) list.add(h);
+                }
+                holders.clear();
+            }
+
+            for (Holder h : list) {
+                h.evicted(image);
+            }
+        }
+
+        private long getBytes() {
+            // Images still loading report 0 and are counted on a later trim
+            return (long) image.getWidth() * (long) image.getHeight() * 4;
+        }
+
+    }
+
+}
@@ -0,0 +1,335 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.service;
+
+import animtool.gui.Main;
+import javafx.beans.Observable;
+import javafx.beans.property.SimpleIntegerProperty;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.image.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs thumbnails of all open editors into a few large pages, so a long strip shares a handful of textures instead of
+ * uploading one per frame.
+ * <p>
+ * Pages are filled slot by slot. When every page is full, the least recently used page is evicted as a whole and
+ * filled again. Cells showing a slot listen to {@link Slot#invalidation()} to request their thumbnail again after
+ * eviction. Pages are backed by {@link PixelBuffer}s and every write reports just its slot or patched region as dirty,
+ * so packing a thumbnail uploads that thumbnail and not the whole page.
+ * <p>
+ * Lookups don't touch the disk. Thumbnails of files that change are patched or removed by their frames, those of
+ * folders that weren't watched are checked once with {@link #validate(File)}. Only used on the FX application thread.
+ */
+public final class ThumbnailAtlas {
+
+    private static final int SLOT_SIZE = 100;
+    private static final int SLOTS_PER_ROW = 10;
+    private static final int PAGE_SIZE = SLOT_SIZE * SLOTS_PER_ROW;
+    /**
+     * At most this many pages are kept, about 4MB each.
+     */
+    private static final int MAX_PAGES = 16;
+
+    private static final WritablePixelFormat<IntBuffer> FORMAT = PixelFormat.getIntArgbPreInstance();
+
+    private static final ThumbnailAtlas instance = new ThumbnailAtlas();
+
+    private final List<Page> pages = new ArrayList<>();
+    private final Map<Path, Slot> slots = new HashMap<>();
+    private Page filling = null;
+    private long useCounter = 0;
+
+
+    private ThumbnailAtlas() {
+    }
+
+    public static ThumbnailAtlas get() {
+        return instance;
+    }
+
+    /**
+     * Gets a file's thumbnail slot without checking the file.
+     *
+     * @param file Image file.
+     * @return The slot, or null.
+     */
+    public Slot get(File file) {
+        Path path = file.toPath().toAbsolutePath();
+        Slot slot = slots.get(path);
+        if (slot == null) return null;
+
+        if (!slot.isValid()) {
+            slots.remove(path);
+            return null;
+        }
+
+        slot.page.lastUsed = ++useCounter;
+        return slot;
+    }
+
+    /**
+     * Packs a decoded thumbnail. The decoded image isn't kept.
+     *
+     * @param decoded Thumbnail decoded on a loader thread.
+     * @return The slot now holding the thumbnail, or null if it couldn't be decoded.
+     */
+    public Slot put(Decoded decoded) {
+        Image img = decoded.image;
+        if (img == null || img.isError() || img.getPixelReader() == null) return null;
+
+        Slot existing = slots.get(decoded.path);
+        if (existing != null && existing.isValid() && existing.size == decoded.size && existing.modified == decoded.modified) return existing;
+
+        int w = Math.min(SLOT_SIZE, (int) img.getWidth()), h = Math.min(SLOT_SIZE, (int) img.getHeight());
+        Page page = pageWithSpace();
+        int index = page.used++;
+        int x = (index % SLOTS_PER_ROW) * SLOT_SIZE, y = (index / SLOTS_PER_ROW) * SLOT_SIZE;
+
+        int[] pixels = new int[w * h];
+        img.getPixelReader().getPixels(0, 0, w, h, FORMAT, pixels, 0, w);
+        page.write(x, y, w, h, pixels);
+
+        Slot slot = new Slot(page, page.generation.get(), new Rectangle2D(x, y, w, h), decoded.size, decoded.modified);
+        slots.put(decoded.path, slot);
+        page.lastUsed = ++useCounter;
+        return slot;
+    }
+
+    /**
+     * Updates the regions of a packed thumbnail that changed in the full size image, resampling just those regions
+     * from the new full size pixels.
+     *
+     * @param file     Image file.
+     * @param pixels   New full size pixels in premultiplied ARGB.
+     * @param width    Full size image width.
+     * @param height   Full size image height.
+     * @param dirty    Regions of the full size image that changed.
+     * @param size     File size the new pixels were decoded from.
+     * @param modified File modification time the new pixels were decoded from.
+     */
+    public void patch(File file, int[] pixels, int width, int height, List<Rectangle2D> dirty, long size, long modified) {
+        Path path = file.toPath().toAbsolutePath();
+        Slot slot = slots.get(path);
+        if (slot == null || !slot.isValid()) return;
+
+        Rectangle2D viewport = slot.viewport;
+        int tw = (int) viewport.getWidth(), th = (int) viewport.getHeight();
+
+        for (Rectangle2D r : dirty) {
+            int x0 = (int) Math.floor(r.getMinX() * tw / width), x1 = Math.min(tw, (int) Math.ceil(r.getMaxX() * tw / width));
+            int y0 = (int) Math.floor(r.getMinY() * th / height), y1 = Math.min(th, (int) Math.ceil(r.getMaxY() * th / height));
+            if (x1 <= x0 || y1 <= y0) continue;
+
+            int[] out = new int[(x1 - x0) * (y1 - y0)];
+            for (int y = y0; y < y1; y++) {
+                int sy0 = (int) ((long) y * height / th), sy1 = Math.max(sy0 + 1, (int) ((long) (y + 1) * height / th));
+                for (int x = x0; x < x1; x++) {
+                    int sx0 = (int) ((long) x * width / tw), sx1 = Math.max(sx0 + 1, (int) ((long) (x + 1) * width / tw));
+                    out[(y - y0) * (x1 - x0) + x - x0] = average(pixels, width, sx0, sx1, sy0, sy1);
+                }
+            }
+
+            slot.page.write((int) viewport.getMinX() + x0, (int) viewport.getMinY() + y0, x1 - x0, y1 - y0, out);
+        }
+
+        slots.put(path, new Slot(slot.page, slot.generation, viewport, size, modified));
+    }
+
+    private static int average(int[] pixels, int width, int x0, int x1, int y0, int y1) {
+        long a = 0, r = 0, g = 0, b = 0;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                int p = pixels[y * width + x];
+                a += p >>> 24;
+                r += (p >> 16) & 0xff;
+                g += (p >> 8) & 0xff;
+                b += p & 0xff;
+            }
+        }
+
+        long n = (long) (x1 - x0) * (y1 - y0);
+        return (int) (a / n) << 24 | (int) (r / n) << 16 | (int) (g / n) << 8 | (int) (b / n);
+    }
+
+    /**
+     * Forgets the thumbnails of a folder's files that changed since they were packed. For folders that no editor had
+     * open, whose files weren't watched in the meantime.
+     *
+     * @param folder Folder to check.
+     */
+    public void validate(File folder) {
+        Path dir = folder.toPath().toAbsolutePath();
+        slots.entrySet().removeIf(e -> {
+            if (!dir.equals(e.getKey().getParent())) return false;
+            File file = e.getKey().toFile();
+            return e.getValue().size != file.length() || e.getValue().modified != file.lastModified();
+        });
+    }
+
+    /**
+     * Forgets a file's thumbnail, for example when the file was deleted or changed. Its space is reclaimed with its page.
+     *
+     * @param file Image file.
+     */
+    public void remove(File file) {
+        slots.remove(file.toPath().toAbsolutePath());
+    }
+
+    private Page pageWithSpace() {
+        if (filling != null && filling.used < SLOTS_PER_ROW * SLOTS_PER_ROW) return filling;
+
+        if (pages.size() < MAX_PAGES) {
+            filling = new Page();
+            pages.add(filling);
+            return filling;
+        }
+
+        Page lru = null;
+        for (Page page : pages) {
+            if (lru == null || page.lastUsed < lru.lastUsed) lru = page;
+        }
+
+        evict(lru);
+        filling = lru;
+        return lru;
+    }
+
+    private void evict(Page page) {
+        slots.values().removeIf(slot -> slot.page == page);
+        page.used = 0;
+        page.generation.set(page.generation.get() + 1);
+        Main.log.fine("Evicted thumbnail atlas page");
+    }
+
+    private static class Page {
+
+        final PixelBuffer<IntBuffer> buffer = new PixelBuffer<>(PAGE_SIZE, PAGE_SIZE,
+                ByteBuffer.allocateDirect(PAGE_SIZE * PAGE_SIZE * 4).order(ByteOrder.nativeOrder()).asIntBuffer(), FORMAT);
+        final WritableImage image = new WritableImage(buffer);
+        final SimpleIntegerProperty generation = new SimpleIntegerProperty(0);
+        int used = 0;
+        long lastUsed = 0;
+
+        /**
+         * Copies premultiplied ARGB pixels into the page and marks only that area dirty.
+         */
+        void write(int x, int y, int w, int h, int[] pixels) {
+            buffer.updateBuffer(b -> {
+                IntBuffer dst = b.getBuffer();
+                for (int row = 0; row < h; row++) {
+                    dst.put((y + row) * PAGE_SIZE + x, pixels, row * w, w);
+                }
+                return new Rectangle2D(x, y, w, h);
+            });
+        }
+
+    }
+
+    /**
+     * A thumbnail's place in the atlas. Show it through an image view with {@link #getImage()} and
+     * {@link #getViewport()}.
+     */
+    public static final class Slot {
+
+        private final Page page;
+        private final int generation;
+        private final Rectangle2D viewport;
+        private final long size, modified;
+
+
+        private Slot(Page page, int generation, Rectangle2D viewport, long size, long modified) {
+            this.page = page;
+            this.generation = generation;
+            this.viewport = viewport;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        /**
+         * @return The atlas page holding this thumbnail.
+         */
+        public Image getImage() {
+            return page.image;
+        }
+
+        /**
+         * @return Area of the page holding this thumbnail.
+         */
+        public Rectangle2D getViewport() {
+            return viewport;
+        }
+
+        /**
+         * @return False once this slot's page has been evicted and reused.
+         */
+        public boolean isValid() {
+            return page.generation.get() == generation;
+        }
+
+        /**
+         * @return Observable that is invalidated when this slot's page is evicted.
+         */
+        public Observable invalidation() {
+            return page.generation;
+        }
+
+    }
+
+    /**
+     * A thumbnail decoded off the FX application thread, waiting to be packed.
+     */
+    public static final class Decoded {
+
+        private final Path path;
+        private final Image image;
+        private final long size, modified;
+
+
+        /**
+         * @param file     Image file.
+         * @param image    Fully decoded thumbnail.
+         * @param size     File size when decoding started.
+         * @param modified File modification time when decoding started.
+         */
+        public Decoded(File file, Image image, long size, long modified) {
+            this.path = file.toPath().toAbsolutePath();
+            this.image = image;
+            this.size = size;
+            this.modified = modified;
+        }
+
+    }
+
+}
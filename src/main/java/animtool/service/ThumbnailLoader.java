@@ -0,0 +1,101 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.service;
+
+import animtool.gui.Main;
+import javafx.application.Platform;
+
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+/**
+ * Queues thumbnail decodes shared by all open editors on the {@link DecodePool}, at its thumbnail priority so they are
+ * served newest first and ahead of background work. Cancelled requests are taken off the queue without decoding.
+ */
+public final class ThumbnailLoader {
+
+    private ThumbnailLoader() {
+    }
+
+    /**
+     * Queues a decode.
+     *
+     * @param task     Decodes the thumbnail on a pool thread.
+     * @param callback Receives the result on the FX application thread, unless the request was cancelled first.
+     * @return Handle to cancel the request with.
+     */
+    public static <T> Request<T> submit(Supplier<T> task, Consumer<T> callback) {
+        Request<T> request = new Request<>(task, callback);
+        request.future = DecodePool.submit(DecodePool.Priority.THUMBNAIL, request::run);
+        return request;
+    }
+
+    public static final class Request<T> {
+
+        private final Supplier<T> task;
+        private final Consumer<T> callback;
+        private volatile boolean cancelled = false;
+        private volatile Future<?> future = null;
+
+
+        private Request(Supplier<T> task, Consumer<T> callback) {
+            this.task = task;
+            this.callback = callback;
+        }
+
+        private void run() {
+            if (cancelled) return;
+
+            T result;
+            try {
+                result = task.get();
+            } catch (RuntimeException e) {
+                Main.log.log(Level.WARNING, "Thumbnail decode failed", e);
+                return;
+            }
+            Platform.runLater(() -> {
+                if (!cancelled) callback.accept(result);
+            });
+        }
+
+        /**
+         * Cancels this request and takes it off the queue. A decode that already started still finishes, but the
+         * callback is not called.
+         */
+        public void cancel() {
+            cancelled = true;
+            Future<?> f = future;
+            if (f != null) DecodePool.cancel(f);
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.service;
+
+import javafx.scene.image.Image;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide memory-budgeted cache of image tiles, used to zoom into large frames without decoding them whole.
+ */
+public final class TileCache {
+
+    private static final TileCache instance = new TileCache();
+
+    /**
+     * Budget for decoded tiles, an eighth of the maximum heap.
+     */
+    private final long budget = Runtime.getRuntime().maxMemory() / 8;
+
+    private final LinkedHashMap<Key, Image> tiles = new LinkedHashMap<>(256, 0.75f, true);
+    private long total = 0;
+
+
+    private TileCache() {
+    }
+
+    public static TileCache get() {
+        return instance;
+    }
+
+    public synchronized Image get(Key key) {
+        return tiles.get(key);
+    }
+
+    public synchronized void put(Key key, Image tile) {
+        Image old = tiles.put(key, tile);
+        if (old != null) total -= bytes(old);
+        total += bytes(tile);
+
+        Iterator<Map.Entry<Key, Image>> iter = tiles.entrySet().iterator();
+        while (total > budget && iter.hasNext()) {
+            Map.Entry<Key, Image> e = iter.next();
+            if (e.getValue() == tile) break;
+            total -= bytes(e.getValue());
+            iter.remove();
+        }
+    }
+
+    private static long bytes(Image img) {
+        return (long) img.getWidth() * (long) img.getHeight() * 4;
+    }
+
+    /**
+     * Identifies one tile of one pyramid level of one version of a file.
+     */
+    public static final class Key {
+
+        private final Path path;
+        private final long modified;
+        private final int level, column, row;
+
+
+        /**
+         * @param file     Image file.
+         * @param modified File modification time the tile was decoded from.
+         * @param level    Pyramid level, where level n is subsampled by 2^n.
+         * @param column   Tile column within the level.
+         * @param row      Tile row within the level.
+         */
+        public Key(File file, long modified, int level, int column, int row) {
+            this.path = file.toPath().toAbsolutePath();
+            this.modified = modified;
+            this.level = level;
+            this.column = column;
+            this.row = row;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public int getColumn() {
+            return column;
+        }
+
+        public int getRow() {
+            return row;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) return false;
+            Key o = (Key) obj;
+            return o.level == level && o.column == column && o.row == row && o.modified == modified && o.path.equals(path);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((path.hashCode() * 31 + Long.hashCode(modified)) * 31 + level) * 961 + column * 31 + row;
+        }
+
+    }
+
+}
@@ -0,0 +1,196 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.service;
+
+import animtool.gui.Main;
+import animtool.watch.FileChange;
+import animtool.watch.FolderWatchListener;
+import animtool.watch.FolderWatcher;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+
+/**
+ * Process-wide folder watching shared by all open editors.
+ * <p>
+ * Each folder is registered with a backend once, no matter how many editors watch it, and events are fanned out to
+ * every listener of that folder. At most one native and one polling watcher thread exist at a time, and both are shut
+ * down when nothing is watched anymore.
+ */
+public final class WatchDispatcher {
+
+    private static final WatchDispatcher instance = new WatchDispatcher();
+
+    private FolderWatcher nativeWatcher = null;
+    private FolderWatcher pollingWatcher = null;
+    private final Map<Path, Registration> registrations = new HashMap<>();
+
+    private final FolderWatchListener dispatch = new FolderWatchListener() {
+        @Override
+        public void changesDetected(Path folder, List<FileChange> changes) {
+            Registration r = getRegistration(folder);
+            if (r == null) return;
+
+            for (FolderWatchListener listener : r.listeners) {
+                try {
+                    listener.changesDetected(folder, changes);
+                } catch (Exception e) {
+                    Main.log.log(Level.SEVERE, "Exception while handling folder changes: " + folder, e);
+                }
+            }
+        }
+
+        @Override
+        public void overflowed(Path folder) {
+            Registration r = getRegistration(folder);
+            if (r == null) return;
+
+            for (FolderWatchListener listener : r.listeners) {
+                try {
+                    listener.overflowed(folder);
+                } catch (Exception e) {
+                    Main.log.log(Level.SEVERE, "Exception while handling watch overflow: " + folder, e);
+                }
+            }
+        }
+    };
+
+
+    private WatchDispatcher() {
+    }
+
+    public static WatchDispatcher get() {
+        return instance;
+    }
+
+    /**
+     * Adds a listener for a folder, registering the folder with a backend if nobody else is watching it yet.
+     *
+     * @param folder   Folder to watch.
+     * @param backend  Preferred backend. Ignored if the folder is already watched. {@link FolderWatcher.Backend#AUTO}
+     *                 falls back to polling if native registration fails.
+     * @param listener Listener to notify of changes in the folder.
+     * @return The backend the folder is actually watched with.
+     * @throws IOException When the folder could not be watched.
+     */
+    public synchronized FolderWatcher.Backend register(Path folder, FolderWatcher.Backend backend, FolderWatchListener listener) throws IOException {
+        Path abs = folder.toAbsolutePath();
+
+        Registration r = registrations.get(abs);
+        if (r == null) {
+            FolderWatcher.Backend resolved = backend;
+            if (resolved == FolderWatcher.Backend.AUTO) resolved = FolderWatcher.detectBackend(abs);
+
+            try {
+                getWatcher(resolved).register(abs);
+            } catch (IOException e) {
+                if (backend != FolderWatcher.Backend.AUTO || resolved != FolderWatcher.Backend.NATIVE) throw e;
+
+                // Native registration can fail on some virtual filesystems, polling only needs to list the folder
+                Main.log.log(Level.WARNING, "Unable to watch folder natively, falling back to polling: " + abs, e);
+                resolved = FolderWatcher.Backend.POLLING;
+                getWatcher(resolved).register(abs);
+            }
+
+            r = new Registration(resolved);
+            registrations.put(abs, r);
+            Main.log.info("Watching folder with " + resolved + " backend: " + abs);
+        }
+
+        if (!r.listeners.contains(listener)) r.listeners.add(listener);
+        return r.backend;
+    }
+
+    /**
+     * Removes a listener from a folder. The folder stops being watched once its last listener is removed.
+     *
+     * @param folder   Watched folder.
+     * @param listener Listener to remove.
+     */
+    public synchronized void unregister(Path folder, FolderWatchListener listener) {
+        Path abs = folder.toAbsolutePath();
+
+        Registration r = registrations.get(abs);
+        if (r == null) return;
+
+        r.listeners.remove(listener);
+        if (r.listeners.isEmpty()) {
+            registrations.remove(abs);
+            getWatcherIfOpen(r.backend).unregister(abs);
+            Main.log.info("Stopped watching folder: " + abs);
+        }
+
+        if (registrations.isEmpty()) closeWatchers();
+    }
+
+    private synchronized Registration getRegistration(Path folder) {
+        return registrations.get(folder);
+    }
+
+    private FolderWatcher getWatcher(FolderWatcher.Backend backend) throws IOException {
+        if (backend == FolderWatcher.Backend.NATIVE) {
+            if (nativeWatcher == null) nativeWatcher = FolderWatcher.create(backend, dispatch);
+            return nativeWatcher;
+        } else {
+            if (pollingWatcher == null) pollingWatcher = FolderWatcher.create(backend, dispatch);
+            return pollingWatcher;
+        }
+    }
+
+    private FolderWatcher getWatcherIfOpen(FolderWatcher.Backend backend) {
+        return backend == FolderWatcher.Backend.NATIVE ? nativeWatcher : pollingWatcher;
+    }
+
+    private void closeWatchers() {
+        for (FolderWatcher w : new FolderWatcher[]{nativeWatcher, pollingWatcher}) {
+            if (w == null) continue;
+            try {
+                w.close();
+            } catch (IOException e) {
+                Main.log.log(Level.SEVERE, "Failed to close filesystem watch service", e);
+            }
+        }
+        nativeWatcher = null;
+        pollingWatcher = null;
+    }
+
+    private static class Registration {
+
+        final FolderWatcher.Backend backend;
+        final List<FolderWatchListener> listeners = new CopyOnWriteArrayList<>();
+
+
+        Registration(FolderWatcher.Backend backend) {
+            this.backend = backend;
+        }
+
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.watch;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects raw file events and merges multiple events for the same file into a single net change.
+ * <p>
+ * For example, a file that is created and then modified is reported only as created, and a file that is created and
+ * deleted within the same batch is not reported at all.
+ */
+public class FileChangeBatch {
+
+    private final Map<Path, FileChange.Kind> changes = new LinkedHashMap<>();
+
+
+    public void add(Path file, FileChange.Kind kind) {
+        FileChange.Kind previous = changes.get(file);
+
+        if (previous == null) {
+            changes.put(file, kind);
+        } else if (previous == FileChange.Kind.CREATED) {
+            if (kind == FileChange.Kind.DELETED) changes.remove(file);
+            // Created then modified is still just created
+        } else if (previous == FileChange.Kind.DELETED) {
+            // Deleted and then recreated is effectively a modification
+            if (kind != FileChange.Kind.DELETED) changes.put(file, FileChange.Kind.MODIFIED);
+        } else {
+            changes.put(file, kind);
+        }
+    }
+
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    public void clear() {
+        changes.clear();
+    }
+
+    /**
+     * @return The net changes in the order their files were first seen.
+     */
+    public List<FileChange> toList() {
+        List<FileChange> list = new ArrayList<>(changes.size());
+        changes.forEach((file, kind) -> list.add(new FileChange(file, kind)));
+        return list;
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.watch;
+
+import animtool.gui.Main;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.logging.Level;
+
+/**
+ * Watches any number of folders for file changes and reports them as coalesced batches to a single listener.
+ */
+public interface FolderWatcher extends Closeable {
+
+    enum Backend {
+        /**
+         * Picks {@link #NATIVE} or {@link #POLLING} depending on the filesystem the folder lives on.
+         */
+        AUTO,
+        /**
+         * Uses the JDK {@link java.nio.file.WatchService}.
+         */
+        NATIVE,
+        /**
+         * Periodically compares folder contents against a cached index. Works on network and virtual filesystems
+         * where the native service misses events.
+         */
+        POLLING
+    }
+
+    /**
+     * Starts watching a folder. Registering an already watched folder does nothing.
+     *
+     * @param folder Folder to watch.
+     * @throws IOException When the folder could not be registered.
+     */
+    void register(Path folder) throws IOException;
+
+    /**
+     * Stops watching a folder.
+     *
+     * @param folder Folder to stop watching.
+     */
+    void unregister(Path folder);
+
+    /**
+     * Creates a watcher for the given backend.
+     *
+     * @param backend  Backend to use. {@link Backend#AUTO} is not allowed here, see {@link #detectBackend(Path)}.
+     * @param listener Listener receiving all change batches.
+     * @return A new, running watcher.
+     * @throws IOException When the native watch service could not be created.
+     */
+    static FolderWatcher create(Backend backend, FolderWatchListener listener) throws IOException {
+        switch (backend) {
+            case NATIVE:
+                return new NativeFolderWatcher(listener);
+            case POLLING:
+                return new PollingFolderWatcher(listener);
+            default:
+                throw new IllegalArgumentException("Backend must be resolved before creating a watcher: " + backend);
+        }
+    }
+
+    /**
+     * Guesses the best backend for a folder. Network shares and platforms where the JDK falls back to its own slow
+     * poller are watched with {@link Backend#POLLING}, everything else with {@link Backend#NATIVE}.
+     *
+     * @param folder Folder that will be watched.
+     * @return {@link Backend#NATIVE} or {@link Backend#POLLING}.
+     */
+    static Backend detectBackend(Path folder) {
+        // UNC paths (\\server\share) are always network shares
+        if (folder.toAbsolutePath().toString().startsWith("\\\\")) return Backend.POLLING;
+
+        // The JDK on macOS has no native implementation and polls every 10 seconds
+        if (System.getProperty("os.name", "").toLowerCase(Locale.ROOT).contains("mac")) return Backend.POLLING;
+
+        try {
+            String type = Files.getFileStore(folder).type().toLowerCase(Locale.ROOT);
+            for (String remote : new String[]{"nfs", "cifs", "smb", "fuse", "9p", "dav", "afp", "ncp"}) {
+                if (type.contains(remote)) return Backend.POLLING;
+            }
+        } catch (IOException e) {
+            Main.log.log(Level.WARNING, "Unable to determine filesystem type of: " + folder, e);
+        }
+
+        return Backend.NATIVE;
+    }
+
+}
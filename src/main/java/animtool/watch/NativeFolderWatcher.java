@@ -0,0 +1,151 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.watch;
+
+import animtool.gui.Main;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Folder watcher backed by the JDK {@link WatchService}.
+ * <p>
+ * After the first event arrives, further events are collected for a short settle period so that the burst of events
+ * produced by a single save is reported as one batch.
+ */
+public class NativeFolderWatcher implements FolderWatcher {
+
+    private static final long SETTLE_MILLIS = 30;
+    private static final long MAX_SETTLE_MILLIS = 250;
+
+    private final WatchService watchService;
+    private final FolderWatchListener listener;
+    private final Map<Path, WatchKey> keys = new ConcurrentHashMap<>();
+
+
+    public NativeFolderWatcher(FolderWatchListener listener) throws IOException {
+        this.listener = listener;
+        watchService = FileSystems.getDefault().newWatchService();
+
+        Thread t = new Thread(this::run, "Native Folder Watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void register(Path folder) throws IOException {
+        Path abs = folder.toAbsolutePath();
+        if (keys.containsKey(abs)) return;
+
+        keys.put(abs, abs.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY));
+    }
+
+    @Override
+    public void unregister(Path folder) {
+        WatchKey key = keys.remove(folder.toAbsolutePath());
+        if (key != null) key.cancel();
+    }
+
+    @Override
+    public void close() throws IOException {
+        keys.clear();
+        watchService.close();
+    }
+
+    private void run() {
+        Map<Path, FileChangeBatch> batches = new LinkedHashMap<>();
+
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                long deadline = System.currentTimeMillis() + MAX_SETTLE_MILLIS;
+                do {
+                    drain(key, batches);
+                    key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                } while (key != null && System.currentTimeMillis() < deadline);
+                if (key != null) drain(key, batches);
+
+                // This thread serves every open editor, one failing listener must not stop it
+                batches.forEach((folder, batch) -> {
+                    if (batch.isEmpty()) return;
+                    try {
+                        listener.changesDetected(folder, batch.toList());
+                    } catch (RuntimeException e) {
+                        Main.log.log(Level.SEVERE, "Exception while handling folder changes: " + folder, e);
+                    }
+                });
+                batches.clear();
+            }
+        } catch (InterruptedException e) {
+            Main.log.log(Level.WARNING, "Interrupted watch service", e);
+        } catch (ClosedWatchServiceException e) {
+            Main.log.info("Watch service closed while waiting for watch key (expected)");
+        }
+    }
+
+    /**
+     * Collects the events of one key into its folder's batch. Failures are contained to the key, which is always reset
+     * so its folder keeps being watched.
+     */
+    private void drain(WatchKey key, Map<Path, FileChangeBatch> batches) {
+        Path folder = (Path) key.watchable();
+        FileChangeBatch batch = batches.computeIfAbsent(folder, k -> new FileChangeBatch());
+
+        try {
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    batch.clear();
+                    try {
+                        listener.overflowed(folder);
+                    } catch (RuntimeException e) {
+                        Main.log.log(Level.SEVERE, "Exception while handling watch overflow: " + folder, e);
+                    }
+                    continue;
+                }
+
+                Path file = folder.resolve((Path) event.context());
+                if (event.kind() == ENTRY_CREATE) {
+                    batch.add(file, FileChange.Kind.CREATED);
+                } else if (event.kind() == ENTRY_DELETE) {
+                    batch.add(file, FileChange.Kind.DELETED);
+                } else if (event.kind() == ENTRY_MODIFY) {
+                    batch.add(file, FileChange.Kind.MODIFIED);
+                }
+            }
+        } catch (RuntimeException e) {
+            Main.log.log(Level.SEVERE, "Exception while reading watch events: " + folder, e);
+        } finally {
+            key.reset();
+        }
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package animtool.watch;
+
+import animtool.gui.Main;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Folder watcher that periodically lists each folder and compares file sizes and modification times against a cached
+ * index.
+ * <p>
+ * Attributes are read for each file found by a {@link DirectoryStream}. On Windows, including SMB shares, the paths
+ * from the stream carry the attributes returned with the listing, so this costs no extra request per file. Elsewhere
+ * every file is stat'ed once per poll. The poll interval starts short and backs off while folders are quiet, snapping
+ * back as soon as a change is seen.
+ * <p>
+ * The first scan of a registered folder runs on the watcher's thread like every poll, so registering never waits on a
+ * slow share. Changes made before that first scan finishes are not reported.
+ */
+public class PollingFolderWatcher implements FolderWatcher {
+
+    private static final long MIN_INTERVAL_MILLIS = 250;
+    private static final long MAX_INTERVAL_MILLIS = 4000;
+
+    private final FolderWatchListener listener;
+    private final Set<Path> registered = ConcurrentHashMap.newKeySet();
+    private final Map<Path, Map<String, Entry>> indices = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor;
+
+    private long interval = MIN_INTERVAL_MILLIS;
+
+
+    public PollingFolderWatcher(FolderWatchListener listener) {
+        this.listener = listener;
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Polling Folder Watcher");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.schedule(this::poll, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void register(Path folder) throws IOException {
+        Path abs = folder.toAbsolutePath();
+        if (!Files.isDirectory(abs)) throw new NotDirectoryException(abs.toString());
+        if (!registered.add(abs)) return;
+
+        executor.execute(() -> index(abs));
+    }
+
+    @Override
+    public void unregister(Path folder) {
+        Path abs = folder.toAbsolutePath();
+        registered.remove(abs);
+        indices.remove(abs);
+    }
+
+    /**
+     * Scans a newly registered folder for the first time, so later polls have something to compare against.
+     */
+    private void index(Path folder) {
+        if (!registered.contains(folder)) return;
+
+        Map<String, Entry> index = new HashMap<>();
+        try {
+            scan(folder, index, null);
+        } catch (IOException | RuntimeException ex) {
+            // Whatever was listed is kept, files missed now are reported as created once the folder can be listed
+            Main.log.log(Level.WARNING, "Unable to index folder: " + folder, ex);
+        }
+
+        indices.put(folder, index);
+        // Unregistered while scanning
+        if (!registered.contains(folder)) indices.remove(folder);
+    }
+
+    @Override
+    public void close() {
+        registered.clear();
+        indices.clear();
+        executor.shutdownNow();
+    }
+
+    private void poll() {
+        boolean changed = false;
+
+        try {
+            for (Map.Entry<Path, Map<String, Entry>> e : indices.entrySet()) {
+                changed |= pollFolder(e.getKey(), e.getValue());
+            }
+        } finally {
+            interval = changed ? MIN_INTERVAL_MILLIS : Math.min(interval * 2, MAX_INTERVAL_MILLIS);
+            if (!executor.isShutdown()) executor.schedule(this::poll, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Scans one folder and reports its changes.
+     *
+     * @return True if anything changed.
+     */
+    private boolean pollFolder(Path folder, Map<String, Entry> index) {
+        FileChangeBatch batch = new FileChangeBatch();
+
+        try {
+            scan(folder, index, batch);
+        } catch (IOException | RuntimeException ex) {
+            // Share may be temporarily unreachable, try again next poll. Files listed before a listing broke off are
+            // already updated in the index, so their changes are still reported, deletions are found next time.
+            Main.log.log(Level.WARNING, "Unable to poll folder: " + folder, ex);
+        }
+
+        if (batch.isEmpty()) return false;
+        try {
+            listener.changesDetected(folder, batch.toList());
+        } catch (Exception ex) {
+            Main.log.log(Level.SEVERE, "Exception while handling folder changes: " + folder, ex);
+        }
+        return true;
+    }
+
+    /**
+     * Lists a folder and updates its index in place.
+     *
+     * @param folder Folder to list.
+     * @param index  Index of the folder's files from the previous scan.
+     * @param batch  Batch to record differences in, or null to only fill the index.
+     * @throws IOException When the folder could not be listed.
+     */
+    private static void scan(Path folder, Map<String, Entry> index, FileChangeBatch batch) throws IOException {
+        for (Entry entry : index.values()) {
+            entry.seen = false;
+        }
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+            for (Path file : stream) {
+                BasicFileAttributes attrs;
+                // Answered from the listing where the stream caches attributes, otherwise a stat
+                try {
+                    attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    // Deleted between listing and reading, next scan will pick it up
+                    continue;
+                }
+                if (!attrs.isRegularFile()) continue;
+
+                String name = file.getFileName().toString();
+                long size = attrs.size();
+                long modified = attrs.lastModifiedTime().toMillis();
+
+                Entry entry = index.get(name);
+                if (entry == null) {
+                    entry = new Entry();
+                    entry.size = size;
+                    entry.modified = modified;
+                    index.put(name, entry);
+                    if (batch != null) batch.add(file, FileChange.Kind.CREATED);
+                } else if (entry.size != size || entry.modified != modified) {
+                    entry.size = size;
+                    entry.modified = modified;
+                    if (batch != null) batch.add(file, FileChange.Kind.MODIFIED);
+                }
+                entry.seen = true;
+            }
+        }
+
+        Iterator<Map.Entry<String, Entry>> iter = index.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, Entry> e = iter.next();
+            if (!e.getValue().seen) {
+                iter.remove();
+                if (batch != null) batch.add(folder.resolve(e.getKey()), FileChange.Kind.DELETED);
+            }
+        }
+    }
+
+    private static class Entry {
+        long size;
+        long modified;
+        boolean seen;
+    }
+
+}
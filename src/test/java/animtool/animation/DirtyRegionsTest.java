@@ -0,0 +1,102 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package animtool.animation;
+
+import javafx.geometry.Rectangle2D;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Changes single pixels and checks which 32 pixel blocks {@link DirtyRegions} reports.
+ */
+class DirtyRegionsTest {
+
+    @Test
+    void unchanged() {
+        int[] before = new int[100 * 100];
+
+        assertEquals(List.of(), DirtyRegions.compute(before, before.clone(), 100, 100));
+    }
+
+    @Test
+    void singleBlock() {
+        assertEquals(List.of(new Rectangle2D(32, 64, 32, 32)), compute(100, 100, 40, 70));
+    }
+
+    @Test
+    void clippedToImage() {
+        assertEquals(List.of(new Rectangle2D(96, 96, 4, 4)), compute(100, 100, 99, 99));
+    }
+
+    @Test
+    void mergesRuns() {
+        assertEquals(List.of(new Rectangle2D(0, 0, 64, 32)), compute(100, 100, 5, 5, 40, 5));
+    }
+
+    @Test
+    void mergesRowsWithSameExtent() {
+        assertEquals(List.of(new Rectangle2D(0, 0, 64, 64)), compute(100, 100, 5, 5, 40, 5, 5, 40, 40, 40));
+    }
+
+    @Test
+    void keepsRowsWithDifferentExtent() {
+        assertEquals(List.of(new Rectangle2D(0, 0, 32, 32), new Rectangle2D(0, 32, 64, 32)), compute(100, 100, 5, 5, 5, 40, 40, 40));
+    }
+
+    @Test
+    void separateRegions() {
+        assertEquals(List.of(new Rectangle2D(0, 0, 32, 32), new Rectangle2D(64, 64, 32, 32)), compute(100, 100, 0, 0, 64, 64));
+    }
+
+    @Test
+    void tooManyRegionsMergeIntoBoundingBox() {
+        // A checkerboard of dirty blocks, none of which can be merged
+        int[] pixels = new int[50 * 2];
+        int n = 0;
+        for (int by = 0; by < 10; by++) {
+            for (int bx = by % 2; bx < 10; bx += 2) {
+                pixels[n++] = bx * 32 + 1;
+                pixels[n++] = by * 32 + 1;
+            }
+        }
+
+        assertEquals(List.of(new Rectangle2D(0, 0, 320, 320)), compute(320, 320, pixels));
+    }
+
+    /**
+     * @param changed Coordinates of the changed pixels, as x, y pairs.
+     */
+    private static List<Rectangle2D> compute(int width, int height, int... changed) {
+        int[] before = new int[width * height];
+        int[] after = before.clone();
+        for (int i = 0; i < changed.length; i += 2) {
+            after[changed[i + 1] * width + changed[i]] = 0xffffffff;
+        }
+        return DirtyRegions.compute(before, after, width, height);
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package animtool.animation;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Drives {@link PlaybackEngine} with a fake clock and explicit pulses. The engine is suspended before it plays, so no
+ * pulse timer is started and the FX toolkit is never needed.
+ */
+class PlaybackEngineTest {
+
+    private long now = 0;
+    private final PlaybackEngine engine = new PlaybackEngine(() -> now);
+
+    @Test
+    void loops() {
+        play(10, 20, 30);
+
+        assertFrameAt(5, 0);
+        assertFrameAt(25, 1);
+        assertFrameAt(45, 2);
+        assertFrameAt(65, 0);
+        assertFrameAt(85, 1);
+    }
+
+    @Test
+    void pingPongMirrorsSecondHalf() {
+        engine.setPingPong(true);
+        play(10, 20, 30);
+
+        assertFrameAt(5, 0);
+        assertFrameAt(25, 1);
+        assertFrameAt(45, 2);
+        // The second half of the period plays the loop backwards
+        assertFrameAt(65, 2);
+        assertFrameAt(95, 1);
+        assertFrameAt(115, 0);
+        assertFrameAt(125, 0);
+        assertFrameAt(135, 1);
+    }
+
+    @Test
+    void pingPongLoopRange() {
+        engine.setPingPong(true);
+        play(10, 10, 10, 10);
+        engine.setLoopRange(1, 2);
+
+        assertFrameAt(5, 1);
+        assertFrameAt(15, 2);
+        assertFrameAt(25, 2);
+        assertFrameAt(35, 1);
+        assertFrameAt(45, 1);
+        assertFrameAt(55, 2);
+    }
+
+    @Test
+    void delayEditKeepsOffsetInFrame() {
+        play(10, 20, 30);
+        assertFrameAt(25, 1);
+
+        // 15ms into frame 1, which now starts at 40ms
+        engine.setDelays(0, new double[]{40});
+        assertEquals(1, engine.getIndex());
+
+        assertFrameAt(29, 1);
+        assertFrameAt(31, 2);
+    }
+
+    @Test
+    void delayEditKeepsDirection() {
+        engine.setPingPong(true);
+        play(10, 20, 30);
+        assertFrameAt(95, 1);
+
+        engine.setDelays(new double[]{10, 40, 30});
+        assertEquals(1, engine.getIndex());
+
+        // Still on the way back, so frame 1 is followed by frame 0 rather than frame 2
+        assertFrameAt(105, 1);
+        assertFrameAt(111, 0);
+    }
+
+    @Test
+    void loopRangeEditKeepsFrameInRange() {
+        play(10, 10, 10, 10);
+        assertFrameAt(25, 2);
+
+        engine.setLoopRange(1, 2);
+        assertEquals(2, engine.getIndex());
+
+        assertFrameAt(26, 2);
+        assertFrameAt(31, 1);
+    }
+
+    @Test
+    void loopRangeEditMovesFrameOutsideRange() {
+        play(10, 10, 10, 10);
+        assertFrameAt(25, 2);
+
+        engine.setLoopRange(3, 3);
+        assertEquals(3, engine.getIndex());
+        assertFrameAt(30, 3);
+
+        engine.clearLoopRange();
+        assertEquals(3, engine.getIndex());
+        assertFrameAt(36, 0);
+    }
+
+    @Test
+    void pauseKeepsPosition() {
+        play(10, 20, 30);
+        assertFrameAt(25, 1);
+
+        engine.pause();
+        now = ms(1000);
+        engine.play();
+        assertFrameAt(1004, 1);
+        assertFrameAt(1006, 2);
+    }
+
+    private void play(double... delays) {
+        engine.setDelays(delays);
+        engine.setSuspended(true);
+        engine.play();
+    }
+
+    private void assertFrameAt(long millis, int frame) {
+        now = ms(millis);
+        engine.tick(now);
+        assertEquals(frame, engine.getIndex(), "frame at " + millis + "ms");
+    }
+
+    private static long ms(long millis) {
+        return millis * 1_000_000;
+    }
+
+}
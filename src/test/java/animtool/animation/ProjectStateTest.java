@@ -0,0 +1,148 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package animtool.animation;
+
+import javafx.beans.property.SimpleDoubleProperty;
+import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Checks the merge-diff that {@link ProjectState} applies batches with, on a plain observable list.
+ */
+class ProjectStateTest {
+
+    private final FrameComparator comparator = new FrameComparator();
+
+    @Test
+    void rangedEditsBackToFront() {
+        ObservableList<Frame> frames = frames(0, 10, 20, 30, 40, 50, 60, 70, 80, 90);
+        List<Frame> working = new ArrayList<>(frames);
+        working.add(2, frame(15));
+        working.remove(frames.get(3));
+        working.add(6, frame(55));
+        working.set(8, frame(70));
+
+        List<String> changes = record(frames);
+        ProjectState.applyChanges(frames, working, comparator);
+
+        assertSameFrames(working, frames);
+        assertEquals(List.of("7-1+1", "6+1", "3-1", "2+1"), changes);
+    }
+
+    @Test
+    void removeAndInsertInOneRange() {
+        ObservableList<Frame> frames = frames(0, 10, 20, 30);
+        List<Frame> working = List.of(frames.get(0), frame(11), frame(12), frame(13), frames.get(3));
+
+        List<String> changes = record(frames);
+        ProjectState.applyChanges(frames, working, comparator);
+
+        assertSameFrames(working, frames);
+        assertEquals(List.of("1-2", "1+3"), changes);
+    }
+
+    @Test
+    void appendAndClear() {
+        ObservableList<Frame> frames = frames();
+        List<Frame> working = List.of(frame(1), frame(2), frame(3));
+
+        List<String> changes = record(frames);
+        ProjectState.applyChanges(frames, working, comparator);
+        ProjectState.applyChanges(frames, List.of(), comparator);
+
+        assertEquals(0, frames.size());
+        assertEquals(List.of("0+3", "0-3"), changes);
+    }
+
+    @Test
+    void unchanged() {
+        ObservableList<Frame> frames = frames(1, 2, 3);
+
+        List<String> changes = record(frames);
+        ProjectState.applyChanges(frames, new ArrayList<>(frames), comparator);
+
+        assertEquals(List.of(), changes);
+    }
+
+    @Test
+    void manyRangesReplaceWholeList() {
+        ObservableList<Frame> frames = frames();
+        for (int i = 0; i < 100; i++) {
+            frames.add(frame(i));
+        }
+        List<Frame> working = new ArrayList<>(frames);
+        working.removeIf(frame -> frames.indexOf(frame) % 3 == 0);
+
+        List<String> changes = record(frames);
+        ProjectState.applyChanges(frames, working, comparator);
+
+        assertSameFrames(working, frames);
+        assertEquals(List.of("0-100+66"), changes);
+    }
+
+    private static Frame frame(int number) {
+        return new Frame(new File("frame" + number + ".png"), new SimpleDoubleProperty(100));
+    }
+
+    private static ObservableList<Frame> frames(int... numbers) {
+        ObservableList<Frame> frames = FXCollections.observableArrayList();
+        for (int number : numbers) {
+            frames.add(frame(number));
+        }
+        return frames;
+    }
+
+    /**
+     * @return Every change to the list as "from-removed+added", leaving out counts of zero.
+     */
+    private static List<String> record(ObservableList<Frame> frames) {
+        List<String> changes = new ArrayList<>();
+        frames.addListener((ListChangeListener<Frame>) c -> {
+            while (c.next()) {
+                String change = String.valueOf(c.getFrom());
+                if (c.getRemovedSize() > 0) change += "-" + c.getRemovedSize();
+                if (c.getAddedSize() > 0) change += "+" + c.getAddedSize();
+                changes.add(change);
+            }
+        });
+        return changes;
+    }
+
+    private static void assertSameFrames(List<Frame> expected, List<Frame> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame(expected.get(i), actual.get(i), "frame " + i);
+        }
+    }
+
+}
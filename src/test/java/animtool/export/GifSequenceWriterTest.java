@@ -0,0 +1,171 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019. Austin Thompson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package animtool.export;
+
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.NamedNodeMap;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Writes frames with {@link GifSequenceWriter} and reads them back with the GIF reader of ImageIO. Frames with at
+ * most 256 colors are stored without quantizing, so they must come back pixel for pixel.
+ */
+class GifSequenceWriterTest {
+
+    @Test
+    void twoColors() throws IOException {
+        BufferedImage img = image(17, 9, (x, y) -> (x + y) % 2 == 0 ? 0xff000000 : 0xffffffff);
+
+        assertPixels(img, roundTrip(img).get(0));
+    }
+
+    @Test
+    void fullColorTable() throws IOException {
+        BufferedImage img = image(16, 16, (x, y) -> 0xff000000 | (y * 16 + x) * 0x010305);
+
+        assertPixels(img, roundTrip(img).get(0));
+    }
+
+    @Test
+    void transparency() throws IOException {
+        BufferedImage img = image(37, 23, (x, y) -> (x + y) % 5 == 0 ? 0 : 0xff000000 | x % 15 * 0x110000 | y % 15 * 0x1100);
+
+        BufferedImage read = roundTrip(img).get(0);
+        assertPixels(img, read);
+        assertEquals("TRUE", graphicControl(img).getNamedItem("transparentColorFlag").getNodeValue());
+    }
+
+    @Test
+    void clearCode() throws IOException {
+        // Random pixels from 256 colors add a code for almost every pixel, filling the 4096 code table many times over
+        Random random = new Random(1);
+        BufferedImage img = image(320, 240, (x, y) -> 0xff000000 | random.nextInt(256) * 0x010101);
+
+        assertPixels(img, roundTrip(img).get(0));
+    }
+
+    @Test
+    void sequence() throws IOException {
+        BufferedImage first = image(8, 8, (x, y) -> 0xffff0000);
+        BufferedImage second = image(8, 8, (x, y) -> x < 4 ? 0xff00ff00 : 0xff0000ff);
+
+        List<BufferedImage> read = roundTrip(first, second);
+        assertEquals(2, read.size());
+        assertPixels(first, read.get(0));
+        assertPixels(second, read.get(1));
+    }
+
+    private interface Pixels {
+        int argb(int x, int y);
+    }
+
+    private static BufferedImage image(int width, int height, Pixels pixels) {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                img.setRGB(x, y, pixels.argb(x, y));
+            }
+        }
+        return img;
+    }
+
+    private static byte[] write(BufferedImage... frames) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GifSequenceWriter writer = new GifSequenceWriter(Channels.newChannel(out), 100, true, GifSequenceWriter.NONE_DISPOSAL);
+        for (BufferedImage frame : frames) {
+            writer.writeToSequence(frame);
+        }
+        writer.close();
+        return out.toByteArray();
+    }
+
+    private static ImageReader reader(byte[] gif) throws IOException {
+        ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+        ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(gif));
+        reader.setInput(in);
+        return reader;
+    }
+
+    private static List<BufferedImage> roundTrip(BufferedImage... frames) throws IOException {
+        ImageReader reader = reader(write(frames));
+        try {
+            int count = reader.getNumImages(true);
+            List<BufferedImage> read = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                read.add(reader.read(i));
+
+                NamedNodeMap control = graphicControl(reader, i);
+                assertEquals("10", control.getNamedItem("delayTime").getNodeValue());
+                assertEquals(GifSequenceWriter.NONE_DISPOSAL, control.getNamedItem("disposalMethod").getNodeValue());
+            }
+            return read;
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    private static NamedNodeMap graphicControl(BufferedImage frame) throws IOException {
+        ImageReader reader = reader(write(frame));
+        try {
+            return graphicControl(reader, 0);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    private static NamedNodeMap graphicControl(ImageReader reader, int index) throws IOException {
+        IIOMetadataNode tree = (IIOMetadataNode) reader.getImageMetadata(index).getAsTree("javax_imageio_gif_image_1.0");
+        return tree.getElementsByTagName("GraphicControlExtension").item(0).getAttributes();
+    }
+
+    private static void assertPixels(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int e = expected.getRGB(x, y), a = actual.getRGB(x, y);
+                if (e >>> 24 < 0x80) {
+                    assertEquals(0, a >>> 24, "alpha at " + x + "," + y);
+                } else {
+                    assertEquals(e, a, "pixel at " + x + "," + y);
+                }
+            }
+        }
+    }
+
+}